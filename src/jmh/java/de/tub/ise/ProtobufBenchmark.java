@@ -0,0 +1,71 @@
+package de.tub.ise;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the messages on the request path
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtobufBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int valueSize;
+
+    private KeyValuePair pair;
+    private Response response;
+    private byte[] pairBytes;
+    private byte[] responseBytes;
+
+    @Setup
+    public void setUp() {
+        byte[] bytes = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        ByteString value = ByteString.copyFrom(bytes);
+        pair = KeyValuePair.newBuilder().setKey("user12345").setValue(value).setVersion(System.currentTimeMillis() << 16)
+                .build();
+        response = Response.newBuilder().setSuccess(true).setKey("user12345").setValue(value)
+                .setVersion(pair.getVersion()).build();
+        pairBytes = pair.toByteArray();
+        responseBytes = response.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeKeyValuePair() {
+        return pair.toByteArray();
+    }
+
+    @Benchmark
+    public KeyValuePair decodeKeyValuePair() throws InvalidProtocolBufferException {
+        return KeyValuePair.parseFrom(pairBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() {
+        return response.toByteArray();
+    }
+
+    @Benchmark
+    public Response decodeResponse() throws InvalidProtocolBufferException {
+        return Response.parseFrom(responseBytes);
+    }
+}
@@ -0,0 +1,223 @@
+package de.tub.ise;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.google.protobuf.ByteString;
+import de.tub.ise.KeyValueStoreGrpc.KeyValueStoreBlockingStub;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Quorum put and get through a cluster of {@link QuorumImpl} nodes in one JVM,
+ * connected by in-process gRPC channels, for different (N, R, W) settings. Each
+ * benchmark thread sends its requests to its own coordinator.
+ * <p>
+ * The store is static, so every node is loaded by its own {@link NodeClassLoader}
+ * and gets its own {@link Memory}: a write is stored once per replica, as in a real
+ * cluster. gRPC and protobuf are shared, messages between nodes are serialized.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class QuorumBenchmark {
+
+    private static final int KEYS = 1000;
+
+    // N/R/W
+    @Param({"3/2/2", "3/1/3", "3/3/1", "5/3/3"})
+    public String quorum;
+
+    @Param({"100"})
+    public int valueSize;
+
+    private final List<Server> servers = new ArrayList<>();
+    private final List<Object> services = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final AtomicInteger nextCoordinator = new AtomicInteger();
+    private String prefix;
+    private int nodes;
+    private ByteString value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+        String[] nrw = quorum.split("/");
+        nodes = Integer.parseInt(nrw[0]);
+        prefix = UUID.randomUUID() + "-";
+        File config = File.createTempFile("quorum-bench", ".xml");
+        config.deleteOnExit();
+        try (Writer out = new FileWriter(config)) {
+            out.write("<quorum qread=\"" + nrw[1] + "\" qwrite=\"" + nrw[2] + "\" replication=\"" + nodes
+                    + "\" antiEntropyInterval=\"0\" bootstrap=\"false\">\n");
+            for (int i = 0; i < nodes; i++) {
+                // the port is never opened, the nodes talk in-process
+                out.write("  <host node=\"node" + i + "\" ip=\"localhost:" + (20000 + i) + "\"/>\n");
+            }
+            out.write("</quorum>\n");
+        }
+        for (int i = 0; i < nodes; i++) {
+            servers.add(InProcessServerBuilder.forName(prefix + "node" + i)
+                    .addService(node("node" + i, config.getPath())).build().start());
+        }
+        byte[] bytes = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        value = ByteString.copyFrom(bytes);
+        KeyValueStoreBlockingStub stub = KeyValueStoreGrpc.newBlockingStub(channel("node0"));
+        for (int i = 0; i < KEYS; i++) {
+            stub.put(KeyValuePair.newBuilder().setKey("key" + i).setValue(value).build());
+        }
+    }
+
+    /**
+     * Creates a node with its own copy of the node classes
+     */
+    private ServerServiceDefinition node(String name, String config) throws Exception {
+        ClassLoader loader = new NodeClassLoader(getClass().getClassLoader());
+        Class<?> configurationClass = loader.loadClass(Configuration.class.getName());
+        Object configuration = configurationClass.getConstructor(String.class, String.class)
+                .newInstance(name, config);
+        configurationClass.getMethod("parseConfig").invoke(configuration);
+        Constructor<?> quorum = loader.loadClass(QuorumImpl.class.getName())
+                .getDeclaredConstructor(configurationClass, Function.class);
+        quorum.setAccessible(true);
+        Function<String, ManagedChannel> channels = this::channel;
+        Object node = quorum.newInstance(configuration, channels);
+        services.add(node);
+        ServerInterceptor metrics = (ServerInterceptor) loader.loadClass(MetricsInterceptor.class.getName())
+                .getConstructor().newInstance();
+        return ServerInterceptors.intercept((BindableService) node, metrics);
+    }
+
+    private synchronized ManagedChannel channel(String node) {
+        ManagedChannel channel = InProcessChannelBuilder.forName(prefix + node).build();
+        channels.add(channel);
+        return channel;
+    }
+
+    @TearDown(Level.Trial)
+    public synchronized void tearDown() throws Exception {
+        for (Object node : services) {
+            Method shutdown = node.getClass().getDeclaredMethod("shutdown");
+            shutdown.setAccessible(true);
+            shutdown.invoke(node);
+        }
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Loads the node classes itself instead of delegating to the parent, so that each
+     * node has its own static state. The benchmark classes and the libraries are shared.
+     */
+    private static class NodeClassLoader extends ClassLoader {
+
+        NodeClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith("de.tub.ise.") || name.startsWith(QuorumBenchmark.class.getName())
+                    || name.startsWith("de.tub.ise.jmh_generated.")) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    c = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    bytes.write(buffer, 0, read);
+                }
+                return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    /**
+     * Stub of the coordinator of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Coordinator {
+        private KeyValueStoreBlockingStub stub;
+
+        @Setup(Level.Trial)
+        public void setUp(QuorumBenchmark cluster) {
+            int node = cluster.nextCoordinator.getAndIncrement() % cluster.nodes;
+            stub = KeyValueStoreGrpc.newBlockingStub(cluster.channel("node" + node));
+        }
+    }
+
+    @Benchmark
+    public Response put(Coordinator coordinator) {
+        String key = "key" + ThreadLocalRandom.current().nextInt(KEYS);
+        return coordinator.stub.put(KeyValuePair.newBuilder().setKey(key).setValue(value).build());
+    }
+
+    @Benchmark
+    public Response get(Coordinator coordinator) {
+        String key = "key" + ThreadLocalRandom.current().nextInt(KEYS);
+        return coordinator.stub.get(Key.newBuilder().setKey(key).build());
+    }
+}
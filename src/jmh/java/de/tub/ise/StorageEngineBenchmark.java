@@ -0,0 +1,116 @@
+package de.tub.ise;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Put, get and delete of the storage engines under contention: all threads work on
+ * the same keys, so writes of different threads race for the same entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=1g")
+@Threads(4)
+public class StorageEngineBenchmark {
+
+    private static final Memory.ChangeListener IGNORE = (key, before, after) -> {
+    };
+
+    @Param({"memory", "offheap", "bitcask", "cached-bitcask"})
+    public String engine;
+
+    @Param({"10000"})
+    public int keys;
+
+    @Param({"100"})
+    public int valueSize;
+
+    private StorageEngine store;
+    private File dir;
+    private String[] names;
+    private ByteString value;
+    // versions increase across threads, so most writes are applied
+    private final AtomicLong version = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        switch (engine) {
+            case "memory":
+                store = new HashMapEngine();
+                break;
+            case "offheap":
+                store = new OffHeapEngine(256L << 20);
+                break;
+            case "bitcask":
+            case "cached-bitcask":
+                dir = Files.createTempDirectory("bitcask-bench").toFile();
+                BitcaskEngine bitcask = new BitcaskEngine(dir, 64 << 20, 0);
+                bitcask.open();
+                store = engine.equals("bitcask") ? bitcask : new CachingEngine(bitcask, 16L << 20);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+        names = new String[keys];
+        byte[] bytes = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        value = ByteString.copyFrom(bytes);
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key" + i;
+            store.putIfNewer(names[i], VersionedValue.of(value, version.incrementAndGet()), IGNORE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        if (dir != null) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private String randomKey() {
+        return names[ThreadLocalRandom.current().nextInt(keys)];
+    }
+
+    @Benchmark
+    public boolean put() {
+        return store.putIfNewer(randomKey(), VersionedValue.of(value, version.incrementAndGet()), IGNORE);
+    }
+
+    @Benchmark
+    public VersionedValue get() {
+        return store.get(randomKey());
+    }
+
+    @Benchmark
+    public boolean delete() {
+        return store.putIfNewer(randomKey(), VersionedValue.tombstone(version.incrementAndGet()), IGNORE);
+    }
+}
@@ -0,0 +1,304 @@
+package de.tub.ise;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.tub.ise.KeyValueStoreGrpc.KeyValueStoreBlockingStub;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.log4j.Logger;
+
+/**
+ * Background reconciliation of the replicas (anti-entropy).
+ * <p>
+ * For every peer, a node keeps a {@link MerkleTree} over the keys both of them
+ * replicate according to the {@link TokenRing}, updated with each change of
+ * {@link Memory}. Periodically a node picks the next peer, walks down
+ * both trees level by level (one treeDigest call per level, only below nodes whose
+ * hashes differ) and pulls the entries of the differing leaves with syncRange.
+ * Fetched entries go through the normal last-writer-wins path, so only newer
+ * versions are applied. As every node pulls from its peers, divergence is repaired
+ * in both directions, and the traffic depends on the number of differing leaves,
+ * not on the size of the store.
+ * <p>
+ * Serving syncRange is throttled to {@code antiEntropyRate} entries per second, so
+ * maintenance doesn't compete with client requests.
+ */
+public class AntiEntropy implements Memory.ChangeListener {
+
+    static Logger logger = Logger.getLogger(AntiEntropy.class.getName());
+
+    // 1024 key ranges
+    private static final int TREE_DEPTH = 10;
+    // entries sent per syncRange message burst
+    private static final int CHUNK_SIZE = 100;
+    private static final long DIGEST_DEADLINE_SECONDS = 10;
+    private static final long SYNC_DEADLINE_MINUTES = 10;
+
+    private final String thisNode;
+    private final HybridClock clock;
+    private final long intervalSeconds;
+    private final RateLimiter limiter;
+    private final TokenRing ring;
+    private final Map<String, MerkleTree> trees = new HashMap<>();
+    private final Map<String, KeyValueStoreBlockingStub> peers = new HashMap<>();
+    private final List<String> peerOrder = new ArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "anti-entropy");
+        t.setDaemon(true);
+        return t;
+    });
+    // serve syncRange, blocked while the requesting node can't keep up
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "anti-entropy-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    private int nextPeer;
+
+    /**
+     * @param thisNode        name of this node
+     * @param channels        channels to the other nodes, by node name
+     * @param ring            token ring that decides which keys a peer shares with this node
+     * @param clock           clock of this node, advanced with the fetched versions
+     * @param intervalSeconds pause between two synchronization rounds, 0 disables them
+     * @param rate            entries per second this node serves to its peers
+     */
+    public AntiEntropy(String thisNode, Map<String, ManagedChannel> channels, TokenRing ring, HybridClock clock,
+                       long intervalSeconds, double rate) {
+        this.thisNode = thisNode;
+        this.ring = ring;
+        this.clock = clock;
+        this.intervalSeconds = intervalSeconds;
+        this.limiter = new RateLimiter(rate, CHUNK_SIZE);
+        for (Map.Entry<String, ManagedChannel> entry : channels.entrySet()) {
+            peers.put(entry.getKey(), KeyValueStoreGrpc.newBlockingStub(entry.getValue()));
+            peerOrder.add(entry.getKey());
+            trees.put(entry.getKey(), new MerkleTree(TREE_DEPTH));
+        }
+        // must see every change from now on, entries restored at startup are added
+        // to the trees right away
+        Memory.addListener(this);
+        Memory.forEach((key, value) -> changed(key, null, value));
+    }
+
+    /**
+     * Starts the periodic synchronization rounds.
+     */
+    public void start() {
+        if (intervalSeconds <= 0 || peerOrder.isEmpty()) {
+            logger.info("Anti-entropy rounds disabled");
+            return;
+        }
+        executor.scheduleWithFixedDelay(this::round, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the synchronization rounds and the ranges being served.
+     */
+    public void stop() {
+        executor.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    @Override
+    public void changed(String key, VersionedValue before, VersionedValue after) {
+        List<String> replicas = ring.preferenceList(key);
+        if (!replicas.contains(thisNode)) {
+            return;
+        }
+        for (String replica : replicas) {
+            MerkleTree tree = trees.get(replica);
+            if (tree != null) {
+                tree.update(key, before, after);
+            }
+        }
+    }
+
+    private MerkleTree treeOf(String peer) {
+        MerkleTree tree = trees.get(peer);
+        if (tree == null) {
+            throw Status.INVALID_ARGUMENT.withDescription("Unknown node " + peer).asRuntimeException();
+        }
+        return tree;
+    }
+
+    /**
+     * Answers a treeDigest request with the hashes of the tree shared with the
+     * requesting node.
+     */
+    public void digest(TreeRequest request, StreamObserver<TreeDigest> responseObserver) {
+        TreeDigest.Builder digest = TreeDigest.newBuilder();
+        try {
+            MerkleTree tree = treeOf(request.getNode());
+            for (int node : request.getNodesList()) {
+                digest.addHashes(tree.hash(node));
+            }
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage())
+                    .asRuntimeException());
+            return;
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+            return;
+        }
+        responseObserver.onNext(digest.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Answers a syncRange request: streams the local entries of the requested leaves
+     * in chunks as the store is scanned, paced by the rate limiter and by the flow
+     * control of the call.
+     */
+    public void syncRange(RangeRequest request, StreamObserver<KeyValuePair> responseObserver) {
+        MerkleTree tree;
+        try {
+            tree = treeOf(request.getNode());
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+            return;
+        }
+        ServerCallStreamObserver<KeyValuePair> call = (ServerCallStreamObserver<KeyValuePair>) responseObserver;
+        Object ready = new Object();
+        Runnable wakeUp = () -> {
+            synchronized (ready) {
+                ready.notifyAll();
+            }
+        };
+        call.setOnReadyHandler(wakeUp);
+        call.setOnCancelHandler(wakeUp);
+        Set<Integer> leaves = new HashSet<>(request.getLeavesList());
+        senders.execute(() -> {
+            List<KeyValuePair> chunk = new ArrayList<>(CHUNK_SIZE);
+            long[] sent = new long[1];
+            try {
+                Memory.forEach((key, value) -> {
+                    // only the keys covered by the tree of the requesting node
+                    if (leaves.contains(tree.leafOf(key)) && ring.isReplica(thisNode, key)
+                            && ring.isReplica(request.getNode(), key)) {
+                        chunk.add(value.toKeyValuePair(key));
+                        if (chunk.size() >= CHUNK_SIZE) {
+                            sendChunk(call, chunk, ready);
+                            sent[0] += chunk.size();
+                            chunk.clear();
+                        }
+                    }
+                });
+                if (!chunk.isEmpty()) {
+                    sendChunk(call, chunk, ready);
+                    sent[0] += chunk.size();
+                }
+                call.onCompleted();
+                logger.debug("Sent " + sent[0] + " entries of " + leaves.size() + " ranges to "
+                        + request.getNode());
+            } catch (StatusRuntimeException e) {
+                // the requesting node gave up
+                logger.debug("syncRange aborted: " + e.getMessage());
+            }
+        });
+    }
+
+    private void sendChunk(ServerCallStreamObserver<KeyValuePair> call, List<KeyValuePair> chunk, Object ready) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(limiter.reserve(chunk.size()));
+            for (KeyValuePair pair : chunk) {
+                synchronized (ready) {
+                    while (!call.isReady()) {
+                        if (call.isCancelled()) {
+                            throw Status.CANCELLED.withDescription("syncRange cancelled").asRuntimeException();
+                        }
+                        ready.wait(100);
+                    }
+                }
+                call.onNext(pair);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withCause(e).asRuntimeException();
+        }
+    }
+
+    /**
+     * One synchronization round with the next peer.
+     */
+    private void round() {
+        String peer = peerOrder.get(nextPeer);
+        nextPeer = (nextPeer + 1) % peerOrder.size();
+        try {
+            synchronize(peer);
+        } catch (StatusRuntimeException e) {
+            logger.warn("Anti-entropy with " + peer + " failed: " + e.getStatus());
+        } catch (RuntimeException e) {
+            logger.error("Anti-entropy with " + peer + " failed", e);
+        }
+    }
+
+    /**
+     * Finds the leaves in which the peer differs and pulls their entries.
+     */
+    void synchronize(String peer) {
+        KeyValueStoreBlockingStub stub = peers.get(peer);
+        MerkleTree tree = trees.get(peer);
+        List<Integer> differing = new ArrayList<>();
+        differing.add(MerkleTree.ROOT);
+        differing = compare(stub, tree, differing);
+        while (!differing.isEmpty() && !tree.isLeaf(differing.get(0))) {
+            List<Integer> children = new ArrayList<>();
+            for (int node : differing) {
+                children.add(2 * node);
+                children.add(2 * node + 1);
+            }
+            differing = compare(stub, tree, children);
+        }
+        if (differing.isEmpty()) {
+            logger.debug("In sync with " + peer);
+            return;
+        }
+
+        RangeRequest request = RangeRequest.newBuilder().setNode(thisNode).addAllLeaves(differing).build();
+        Iterator<KeyValuePair> entries = stub.withDeadlineAfter(SYNC_DEADLINE_MINUTES, TimeUnit.MINUTES)
+                .syncRange(request);
+        int received = 0;
+        int applied = 0;
+        while (entries.hasNext()) {
+            KeyValuePair entry = entries.next();
+            received++;
+            clock.update(entry.getVersion());
+            boolean newer = entry.getDeleted() ? Memory.delete(entry.getKey(), entry.getVersion())
+                    : Memory.put(entry.getKey(), entry.getValue(), entry.getVersion());
+            if (newer) {
+                applied++;
+            }
+        }
+        logger.info("Anti-entropy with " + peer + ": " + differing.size() + " ranges differed, " + received
+                + " entries received, " + applied + " applied");
+    }
+
+    /**
+     * Tree nodes whose hashes differ between this node and the peer.
+     */
+    private List<Integer> compare(KeyValueStoreBlockingStub stub, MerkleTree tree, List<Integer> nodes) {
+        TreeDigest digest = stub.withDeadlineAfter(DIGEST_DEADLINE_SECONDS, TimeUnit.SECONDS)
+                .treeDigest(TreeRequest.newBuilder().setNode(thisNode).addAllNodes(nodes).build());
+        List<Integer> differing = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (digest.getHashes(i) != tree.hash(nodes.get(i))) {
+                differing.add(nodes.get(i));
+            }
+        }
+        return differing;
+    }
+}
@@ -0,0 +1,488 @@
+package de.tub.ise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only storage engine in the style of Bitcask.
+ * <p>
+ * Entries are appended as records (CRC32, key length, value length, version,
+ * flags, key, value) to the active data file; the in-memory keydir maps every key
+ * to the file and offset of its newest record, so a read is a single lookup in a
+ * memory-mapped file. Data files are preallocated and mapped; when the active file
+ * is full it becomes immutable and a new one is started.
+ * <p>
+ * For every immutable file a hint file (key, offset, length, version, flags per
+ * record) is written in the background, so a restart rebuilds the keydir without
+ * reading the values; only the active file is scanned. Immutable files of which
+ * less than half is still referenced by the keydir are compacted: their live
+ * records are copied to the active file and the file is deleted. Tombstones older
+ * than the grace period are dropped when the oldest data file is compacted, as only
+ * older files can hold a value the tombstone shadows; the oldest file is also
+ * compacted when little of it is live apart from its tombstones.
+ * <p>
+ * Values are read without copying: they are slices of the mapped file, which stays
+ * mapped (and, once compacted, on disk) as long as a value read from it is referenced.
+ * Records are never overwritten, so the slices don't change.
+ * <p>
+ * Data files are synced on roll and close. Per-write durability comes from the
+ * write-ahead log, if one is configured.
+ */
+public class BitcaskEngine implements StorageEngine {
+
+    static Logger logger = Logger.getLogger(BitcaskEngine.class.getName());
+
+    private static final String PREFIX = "data-";
+    private static final String DATA_SUFFIX = ".db";
+    private static final String HINT_SUFFIX = ".hint";
+    // crc, key length, value length, version, flags
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 1;
+    private static final int DELETED = 1;
+    // value in the ValueCodec encoding, unset in records written before it
+    private static final int ENCODED = 2;
+    // immutable files with less live data than this share are compacted
+    private static final double MIN_LIVE_RATIO = 0.5;
+    private static final long COMPACTION_INTERVAL_SECONDS = 30;
+
+    private final File dir;
+    private final int fileBytes;
+    private final long graceMillis;
+    private final ConcurrentHashMap<String, Location> keydir = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, DataFile> files = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    // writes hint files and compacts, one task at a time
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bitcask-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+    // replaced under writeLock
+    private volatile DataFile active;
+
+    /**
+     * @param dir          directory of the data and hint files
+     * @param fileBytes    size of a data file
+     * @param graceSeconds age after which compaction may drop a tombstone, 0 keeps
+     *                     tombstones
+     */
+    public BitcaskEngine(File dir, int fileBytes, long graceSeconds) {
+        this.dir = dir;
+        this.fileBytes = fileBytes;
+        this.graceMillis = TimeUnit.SECONDS.toMillis(graceSeconds);
+    }
+
+    /**
+     * Rebuilds the keydir from the hint files and the data files without one, and
+     * starts background compaction.
+     */
+    public void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create data directory " + dir);
+        }
+        List<Integer> ids = dataFileIds();
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            boolean last = i == ids.size() - 1;
+            DataFile file = DataFile.open(dataFile(id), id, last);
+            files.put(id, file);
+            File hints = hintFile(id);
+            if (!last && hints.exists()) {
+                loadHints(file, hints);
+            } else {
+                file.end = scan(file, (key, offset, length, version, deleted) ->
+                        index(key, new Location(file, offset, length, version, deleted)));
+                if (!last) {
+                    background.execute(() -> writeHints(file));
+                }
+            }
+            if (last) {
+                active = file;
+            }
+        }
+        if (active == null) {
+            active = DataFile.create(dataFile(0), 0, fileBytes);
+            files.put(0, active);
+        }
+        background.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+        logger.info("Bitcask in " + dir + " opened " + files.size() + " data files with " + keydir.size() + " keys");
+    }
+
+    @Override
+    public VersionedValue get(String key) {
+        Location location = keydir.get(key);
+        return location == null ? null : read(location);
+    }
+
+    @Override
+    public boolean putIfNewer(String key, VersionedValue update, Memory.ChangeListener changed) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        while (true) {
+            Location current = keydir.get(key);
+            VersionedValue before = current == null ? null : read(current);
+            if (!update.newerThan(before)) {
+                return false;
+            }
+            synchronized (writeLock) {
+                // a concurrent write or compaction moved the key, compare again
+                if (keydir.get(key) != current) {
+                    continue;
+                }
+                try {
+                    index(key, append(keyBytes, update));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot append to data file", e);
+                }
+            }
+            changed.changed(key, before, update);
+            return true;
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, VersionedValue> action) {
+        keydir.forEach((key, location) -> action.accept(key, read(location)));
+    }
+
+    @Override
+    public long size() {
+        return keydir.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdownNow();
+        synchronized (writeLock) {
+            active.buffer.force();
+            for (DataFile file : files.values()) {
+                file.channel.close();
+            }
+        }
+    }
+
+    private VersionedValue read(Location location) {
+        if (location.deleted) {
+            return VersionedValue.tombstone(location.version);
+        }
+        ByteBuffer view = location.file.buffer.duplicate();
+        int keyLength = view.getInt(location.offset + 4);
+        boolean encoded = (view.get(location.offset + 20) & ENCODED) != 0;
+        view.limit(location.offset + location.length).position(location.offset + HEADER_BYTES + keyLength);
+        ByteString value = UnsafeByteOperations.unsafeWrap(view.slice());
+        return VersionedValue.of(encoded ? value : ValueCodec.migrate(value), location.version);
+    }
+
+    // points the key to its new record and moves the live bytes
+    private void index(String key, Location location) {
+        location.file.live(location, 1);
+        Location previous = keydir.put(key, location);
+        if (previous != null) {
+            previous.file.live(previous, -1);
+        }
+    }
+
+    // must hold writeLock
+    private Location append(byte[] key, VersionedValue entry) throws IOException {
+        ByteString value = entry.isDeleted() ? ByteString.EMPTY : entry.getValue();
+        int length = HEADER_BYTES + key.length + value.size();
+        ensureSpace(length);
+        int offset = active.end;
+        ByteBuffer out = active.buffer.duplicate();
+        out.position(offset + 4);
+        out.putInt(key.length).putInt(value.size()).putLong(entry.getVersion())
+                .put((byte) (entry.isDeleted() ? DELETED | ENCODED : ENCODED)).put(key);
+        value.copyTo(out);
+        out.putInt(offset, checksum(active.buffer, offset, length));
+        active.end = offset + length;
+        return new Location(active, offset, length, entry.getVersion(), entry.isDeleted());
+    }
+
+    // must hold writeLock
+    private void ensureSpace(int length) throws IOException {
+        if (active.end + length <= active.buffer.capacity()) {
+            return;
+        }
+        DataFile previous = active;
+        previous.buffer.force();
+        int id = previous.id + 1;
+        active = DataFile.create(dataFile(id), id, Math.max(fileBytes, length));
+        files.put(id, active);
+        background.execute(() -> writeHints(previous));
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(offset + length).position(offset + 4);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Visits the intact records of the file in order, up to the first torn or empty
+     * one.
+     *
+     * @return end of the last intact record
+     */
+    private static int scan(DataFile file, RecordVisitor visitor) {
+        ByteBuffer buffer = file.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= buffer.capacity()) {
+            int keyLength = buffer.getInt(offset + 4);
+            int valueLength = buffer.getInt(offset + 8);
+            if (keyLength < 0 || valueLength < 0
+                    || (long) offset + HEADER_BYTES + keyLength + valueLength > buffer.capacity()) {
+                break;
+            }
+            int length = HEADER_BYTES + keyLength + valueLength;
+            if (buffer.getInt(offset) != checksum(buffer, offset, length)) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + HEADER_BYTES);
+            view.get(key);
+            visitor.visit(new String(key, StandardCharsets.UTF_8), offset, length, buffer.getLong(offset + 12),
+                    (buffer.get(offset + 20) & DELETED) != 0);
+            offset += length;
+        }
+        return offset;
+    }
+
+    private void loadHints(DataFile file, File hints) throws IOException {
+        int end = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hints)))) {
+            while (true) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                int offset = in.readInt();
+                int length = in.readInt();
+                long version = in.readLong();
+                boolean deleted = in.readByte() == DELETED;
+                index(new String(key, StandardCharsets.UTF_8), new Location(file, offset, length, version, deleted));
+                end = Math.max(end, offset + length);
+            }
+        } catch (EOFException e) {
+            // end of hints
+        }
+        file.end = end;
+    }
+
+    private void writeHints(DataFile file) {
+        File hints = hintFile(file.id);
+        File tmp = new File(dir, hints.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            scan(file, (key, offset, length, version, deleted) -> {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                try {
+                    out.writeInt(keyBytes.length);
+                    out.write(keyBytes);
+                    out.writeInt(offset);
+                    out.writeInt(length);
+                    out.writeLong(version);
+                    out.writeByte(deleted ? DELETED : 0);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IOException | IllegalStateException e) {
+            logger.error("Cannot write hint file " + hints, e);
+            tmp.delete();
+            return;
+        }
+        try {
+            // a crash leaves either no hint file or a complete one
+            Files.move(tmp.toPath(), hints.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Cannot write hint file " + hints, e);
+        }
+    }
+
+    /**
+     * Compacts the immutable files with too little live data, run periodically on the
+     * background thread
+     */
+    void compact() {
+        for (DataFile file : files.values()) {
+            // tombstones of the oldest file may be dropped
+            long live = file.liveBytes.get() - (dropsTombstones(file) ? file.tombstoneBytes.get() : 0);
+            if (file != active && live < file.end * MIN_LIVE_RATIO) {
+                try {
+                    compact(file);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Compacting " + file.file + " failed", e);
+                }
+            }
+        }
+    }
+
+    private boolean dropsTombstones(DataFile file) {
+        return graceMillis > 0 && files.firstKey() == file.id;
+    }
+
+    private void compact(DataFile file) throws IOException {
+        long live = file.liveBytes.get();
+        long horizon = System.currentTimeMillis() - graceMillis;
+        boolean drop = dropsTombstones(file);
+        // tombstones and their bytes
+        long[] dropped = new long[2];
+        scan(file, (key, offset, length, version, deleted) -> {
+            synchronized (writeLock) {
+                Location current = keydir.get(key);
+                if (current == null || current.file != file || current.offset != offset) {
+                    return;
+                }
+                if (drop && deleted && HybridClock.millis(version) < horizon) {
+                    keydir.remove(key, current);
+                    file.live(current, -1);
+                    dropped[0]++;
+                    dropped[1] += length;
+                    return;
+                }
+                try {
+                    index(key, copy(current));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot append to data file", e);
+                }
+            }
+        });
+        synchronized (writeLock) {
+            active.buffer.force();
+        }
+        files.remove(file.id);
+        // readers still holding a location in the file keep the mapping alive
+        file.channel.close();
+        hintFile(file.id).delete();
+        if (!file.file.delete()) {
+            logger.warn("Cannot delete compacted data file " + file.file);
+        }
+        logger.info("Compacted " + file.file + ", moved " + (live - dropped[1]) + " of " + file.end
+                + " bytes, dropped " + dropped[0] + " tombstones");
+    }
+
+    // must hold writeLock
+    private Location copy(Location location) throws IOException {
+        ensureSpace(location.length);
+        ByteBuffer record = location.file.buffer.duplicate();
+        record.limit(location.offset + location.length).position(location.offset);
+        ByteBuffer out = active.buffer.duplicate();
+        out.position(active.end);
+        out.put(record);
+        Location moved = new Location(active, active.end, location.length, location.version, location.deleted);
+        active.end += location.length;
+        return moved;
+    }
+
+    private List<Integer> dataFileIds() {
+        File[] found = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(DATA_SUFFIX));
+        List<Integer> ids = new ArrayList<>();
+        for (File file : found == null ? new File[0] : found) {
+            String name = file.getName();
+            ids.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - DATA_SUFFIX.length())));
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private File dataFile(int id) {
+        return new File(dir, String.format("%s%010d%s", PREFIX, id, DATA_SUFFIX));
+    }
+
+    private File hintFile(int id) {
+        return new File(dir, String.format("%s%010d%s", PREFIX, id, HINT_SUFFIX));
+    }
+
+    private interface RecordVisitor {
+        void visit(String key, int offset, int length, long version, boolean deleted);
+    }
+
+    /**
+     * Newest record of a key
+     */
+    private static class Location {
+        private final DataFile file;
+        private final int offset;
+        private final int length;
+        private final long version;
+        private final boolean deleted;
+
+        Location(DataFile file, int offset, int length, long version, boolean deleted) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * Mapped data file
+     */
+    private static class DataFile {
+        private final File file;
+        private final int id;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        // end of the last record, only the active file grows
+        private volatile int end;
+        // bytes of the records the keydir points to, and of the tombstones among them
+        private final AtomicLong liveBytes = new AtomicLong();
+        private final AtomicLong tombstoneBytes = new AtomicLong();
+
+        private DataFile(File file, int id, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.id = id;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        // counts the record in (sign 1) or out (sign -1) of the live bytes
+        void live(Location location, int sign) {
+            liveBytes.addAndGet(sign * location.length);
+            if (location.deleted) {
+                tombstoneBytes.addAndGet(sign * location.length);
+            }
+        }
+
+        static DataFile create(File file, int id, int bytes) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(bytes);
+            FileChannel channel = raf.getChannel();
+            return new DataFile(file, id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes));
+        }
+
+        static DataFile open(File file, int id, boolean writable) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, writable ? "rw" : "r").getChannel();
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            return new DataFile(file, id, channel, channel.map(mode, 0, channel.size()));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package de.tub.ise;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded in-memory cache in front of an on-disk storage engine (W-TinyLFU).
+ * <p>
+ * The disk engine holds all entries; the cache keeps the hot ones within a byte
+ * budget. New entries enter a small LRU window (1% of the budget). Entries leaving
+ * the window compete with the least recently used entry of the main area: the one
+ * with the lower estimated access frequency ({@link FrequencySketch}) is evicted,
+ * so a burst of one-off reads can't push out the working set. The main area is a
+ * segmented LRU: entries hit again move from probation to the protected segment
+ * (80% of the main area).
+ * <p>
+ * Writes go to the disk engine first and update a cached entry in place. The cache
+ * is split into shards by key hash, each with its own lock, sketch and share of
+ * the budget.
+ */
+public class CachingEngine implements StorageEngine {
+
+    private static final int SHARDS = 16;
+    // rough heap size of a cached entry besides key and value
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final StorageEngine disk;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param disk     engine holding all entries
+     * @param maxBytes memory budget of the cached keys and values
+     */
+    public CachingEngine(StorageEngine disk, long maxBytes) {
+        this.disk = disk;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(maxBytes / SHARDS);
+        }
+        Metrics.gauge("cache.hits", hits::get);
+        Metrics.gauge("cache.misses", misses::get);
+        Metrics.gauge("cache.evictions", evictions::get);
+        Metrics.gauge("cache.bytes", this::usedBytes);
+    }
+
+    @Override
+    public VersionedValue get(String key) {
+        long hash = Hashing.hash(key);
+        Shard shard = shardOf(hash);
+        long writes;
+        synchronized (shard) {
+            Node node = shard.nodes.get(key);
+            shard.sketch.increment(hash);
+            if (node != null) {
+                shard.touch(node);
+                hits.incrementAndGet();
+                return node.value;
+            }
+            writes = shard.writes;
+        }
+        misses.incrementAndGet();
+        VersionedValue value = disk.get(key);
+        if (value != null) {
+            synchronized (shard) {
+                // a write in between may have made the loaded value stale
+                if (shard.writes == writes && !shard.nodes.containsKey(key)) {
+                    shard.add(key, hash, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public boolean putIfNewer(String key, VersionedValue update, Memory.ChangeListener changed) {
+        Shard shard = shardOf(Hashing.hash(key));
+        return disk.putIfNewer(key, update, (k, before, after) -> {
+            synchronized (shard) {
+                shard.writes++;
+                Node node = shard.nodes.get(k);
+                if (node != null && after.newerThan(node.value)) {
+                    shard.update(node, after);
+                }
+            }
+            changed.changed(k, before, after);
+        });
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, VersionedValue> action) {
+        disk.forEach(action);
+    }
+
+    @Override
+    public long size() {
+        return disk.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        disk.close();
+    }
+
+    /**
+     * Bytes of the cached entries
+     */
+    private long usedBytes() {
+        long used = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                used += shard.window.weight + shard.probation.weight + shard.protectedArea.weight;
+            }
+        }
+        return used;
+    }
+
+    private Shard shardOf(long hash) {
+        return shards[(int) (hash >>> 60) & (SHARDS - 1)];
+    }
+
+    private static long weightOf(String key, VersionedValue value) {
+        return ENTRY_OVERHEAD + 2L * key.length() + (value.isDeleted() ? 0 : value.getValue().size());
+    }
+
+    /**
+     * Part of the cache with its own budget. All methods must be called holding the
+     * shard's monitor.
+     */
+    private class Shard {
+        private final Map<String, Node> nodes = new HashMap<>();
+        private final FrequencySketch sketch;
+        private final Queue window = new Queue();
+        private final Queue probation = new Queue();
+        private final Queue protectedArea = new Queue();
+        private final long maxWeight;
+        private final long maxWindow;
+        private final long maxProtected;
+        // writes seen, to detect loads that raced with a write
+        private long writes;
+
+        Shard(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxWindow = Math.max(1, maxWeight / 100);
+            this.maxProtected = (maxWeight - maxWindow) * 8 / 10;
+            // sized for entries of about 1 KB
+            this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, maxWeight >> 10)));
+        }
+
+        void touch(Node node) {
+            if (node.queue == probation) {
+                probation.remove(node);
+                protectedArea.addLast(node);
+                // demote the least recently used protected entries
+                while (protectedArea.weight > maxProtected) {
+                    Node demoted = protectedArea.first();
+                    protectedArea.remove(demoted);
+                    probation.addLast(demoted);
+                }
+            } else {
+                Queue queue = node.queue;
+                queue.remove(node);
+                queue.addLast(node);
+            }
+        }
+
+        void add(String key, long hash, VersionedValue value) {
+            long weight = weightOf(key, value);
+            if (weight > maxWeight) {
+                return;
+            }
+            Node node = new Node(key, hash, value, weight);
+            nodes.put(key, node);
+            window.addLast(node);
+            // entries leaving the window become candidates for the main area
+            while (window.weight > maxWindow) {
+                Node candidate = window.first();
+                window.remove(candidate);
+                probation.addLast(candidate);
+            }
+            evict();
+        }
+
+        void update(Node node, VersionedValue value) {
+            Queue queue = node.queue;
+            queue.weight -= node.weight;
+            node.value = value;
+            node.weight = weightOf(node.key, value);
+            queue.weight += node.weight;
+            evict();
+        }
+
+        // admission: the newest candidate only stays if it is used more often than
+        // the least recently used entry of probation
+        private void evict() {
+            while (window.weight + probation.weight + protectedArea.weight > maxWeight) {
+                Queue main = probation.first() != null ? probation : protectedArea.first() != null ? protectedArea
+                        : window;
+                Node victim = main.first();
+                Node candidate = probation.last();
+                Node evicted = victim;
+                if (main == probation && candidate != victim
+                        && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                    evicted = candidate;
+                }
+                evicted.queue.remove(evicted);
+                nodes.remove(evicted.key);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Cached entry, linked into one of the queues of its shard
+     */
+    private static class Node {
+        private final String key;
+        private final long hash;
+        private VersionedValue value;
+        private long weight;
+        private Queue queue;
+        private Node prev;
+        private Node next;
+
+        Node(String key, long hash, VersionedValue value, long weight) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked LRU list, least recently used first, with the weight of its
+     * entries
+     */
+    private static class Queue {
+        private Node head;
+        private Node tail;
+        private long weight;
+
+        Node first() {
+            return head;
+        }
+
+        Node last() {
+            return tail;
+        }
+
+        void addLast(Node node) {
+            node.queue = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            weight -= node.weight;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package de.tub.ise;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import org.apache.log4j.Logger;
+
+/**
+ * Several channels (HTTP/2 connections) to one peer that act as one channel, so the
+ * calls to a busy peer are spread over several connections and event loops instead
+ * of sharing a single one.
+ * <p>
+ * Every call goes to the next channel in turn ({@code roundrobin}) or to the channel
+ * with the fewest calls in flight ({@code leastoutstanding}). Channels that lost
+ * their connection are skipped while another one is connected, so a broken
+ * connection costs no calls while gRPC reconnects it in the background. All channels
+ * start connecting when the pool is created.
+ */
+public class ChannelPool extends ManagedChannel {
+
+    static Logger logger = Logger.getLogger(ChannelPool.class.getName());
+
+    private final String name;
+    private final ManagedChannel[] channels;
+    private final boolean leastOutstanding;
+    private final AtomicIntegerArray outstanding;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param name             peer the channels connect to, for the log
+     * @param channels         channels to the peer
+     * @param leastOutstanding whether calls go to the channel with the fewest calls in
+     *                         flight rather than round-robin
+     */
+    public ChannelPool(String name, ManagedChannel[] channels, boolean leastOutstanding) {
+        this.name = name;
+        this.channels = channels;
+        this.leastOutstanding = leastOutstanding;
+        this.outstanding = new AtomicIntegerArray(channels.length);
+        for (int i = 0; i < channels.length; i++) {
+            channels[i].getState(true);
+            watch(i, false);
+        }
+    }
+
+    /**
+     * Pool of plaintext channels to the peer at host:port, with the size, policy and
+     * keepalive settings of the configuration
+     */
+    public static ChannelPool of(String name, String hostPort, Configuration config) {
+        String[] address = hostPort.split(":");
+        ManagedChannel[] channels = new ManagedChannel[Math.max(1, config.getPeerChannels())];
+        for (int i = 0; i < channels.length; i++) {
+            NettyChannelBuilder builder = NettyChannelBuilder.forAddress(address[0], Integer.parseInt(address[1]))
+                    .usePlaintext()
+                    .flowControlWindow(config.getFlowControlWindow())
+                    .maxInboundMessageSize(config.getMaxMessageBytes());
+            if (config.getPeerKeepAliveTime() > 0) {
+                builder.keepAliveTime(config.getPeerKeepAliveTime(), TimeUnit.SECONDS)
+                        .keepAliveTimeout(config.getKeepAliveTimeout(), TimeUnit.SECONDS);
+            }
+            if (config.getPeerIdleTimeout() > 0) {
+                builder.idleTimeout(config.getPeerIdleTimeout(), TimeUnit.SECONDS);
+            }
+            channels[i] = builder.build();
+        }
+        return new ChannelPool(name, channels, config.getPeerChannelPolicy().equals("leastoutstanding"));
+    }
+
+    /**
+     * Logs the connection losses and reconnects of a channel
+     */
+    private void watch(int index, boolean failed) {
+        ManagedChannel channel = channels[index];
+        ConnectivityState state = channel.getState(false);
+        if (state == ConnectivityState.SHUTDOWN) {
+            return;
+        }
+        if (state == ConnectivityState.TRANSIENT_FAILURE && !failed) {
+            logger.debug("Connection " + index + " to " + name + " failed, reconnecting");
+            failed = true;
+        } else if (state == ConnectivityState.READY && failed) {
+            logger.info("Connection " + index + " to " + name + " reconnected");
+            failed = false;
+        }
+        boolean down = failed;
+        channel.notifyWhenStateChanged(state, () -> watch(index, down));
+    }
+
+    /**
+     * Index of the channel for the next call
+     */
+    private int select() {
+        int start = Math.floorMod(next.getAndIncrement(), channels.length);
+        int best = -1;
+        for (int i = 0; i < channels.length; i++) {
+            int index = (start + i) % channels.length;
+            if (channels[index].getState(false) == ConnectivityState.TRANSIENT_FAILURE) {
+                continue;
+            }
+            if (!leastOutstanding) {
+                return index;
+            }
+            if (best < 0 || outstanding.get(index) < outstanding.get(best)) {
+                best = index;
+            }
+        }
+        // all connections are down, the call fails fast on any of them
+        return best < 0 ? start : best;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method,
+                                                         CallOptions callOptions) {
+        int index = select();
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+                channels[index].newCall(method, callOptions)) {
+            @Override
+            public void start(Listener<RespT> listener, Metadata headers) {
+                outstanding.incrementAndGet(index);
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(listener) {
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        outstanding.decrementAndGet(index);
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+        };
+    }
+
+    @Override
+    public String authority() {
+        return channels[0].authority();
+    }
+
+    /**
+     * The best state of the channels: connected if any channel is
+     */
+    @Override
+    public ConnectivityState getState(boolean requestConnection) {
+        ConnectivityState best = ConnectivityState.SHUTDOWN;
+        for (ManagedChannel channel : channels) {
+            ConnectivityState state = channel.getState(requestConnection);
+            if (rank(state) < rank(best)) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    private static int rank(ConnectivityState state) {
+        switch (state) {
+            case READY:
+                return 0;
+            case CONNECTING:
+                return 1;
+            case IDLE:
+                return 2;
+            case TRANSIENT_FAILURE:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public void resetConnectBackoff() {
+        for (ManagedChannel channel : channels) {
+            channel.resetConnectBackoff();
+        }
+    }
+
+    @Override
+    public void enterIdle() {
+        for (ManagedChannel channel : channels) {
+            channel.enterIdle();
+        }
+    }
+
+    @Override
+    public ManagedChannel shutdown() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        return this;
+    }
+
+    @Override
+    public ManagedChannel shutdownNow() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return channels[0].isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        for (ManagedChannel channel : channels) {
+            if (!channel.isTerminated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ManagedChannel channel : channels) {
+            if (!channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,28 +1,25 @@
 package de.tub.ise;
 
+import com.google.protobuf.ByteString;
 import de.tub.ise.KeyValueStoreGrpc.KeyValueStoreBlockingStub;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 
-import java.io.FileWriter;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Exemplary client for you to try your implementation while developing
  * <p>
- * Seperate class with own main method, it doesn't get referenced anywhere else in
- * the code... You can extend and run the main method to try out different
- * requests
+ * Seperate class, it doesn't get referenced anywhere else in the code... For
+ * benchmarks use {@link LoadGenerator}
  */
 public class Client {
 
-    private static int iterations = 1000;
-
     private final ManagedChannel channel;
     private final KeyValueStoreBlockingStub blockingStub;
 
@@ -50,6 +47,13 @@ public class Client {
      * Put request with synchronous gRPC interface {@code blockingStub}.
      */
     public boolean put(String key, String value) {
+        return put(key, ByteString.copyFromUtf8(value));
+    }
+
+    /**
+     * Put request with a binary value.
+     */
+    public boolean put(String key, ByteString value) {
         //System.out.println("\nWriting data...");
         KeyValuePair request = KeyValuePair.newBuilder().setKey(key).setValue(value).build();
         Response response;
@@ -94,134 +98,73 @@ public class Client {
         return response.getSuccess();
     }
     /**
-     *  Main will execute several calls and calculate the necessary statistics of the benchmarking.
-     *  It will generate a csv with the results.
+     *  Latency histograms and counters of the node, null if it can't be reached.
      */
-    public static void main(String[] args) throws Exception {
-        //no need to measure delete, no need to deal with inconsistencies
-        String[] nodes = {"nodeA:3.121.220.11:8081", "nodeB:35.159.10.242:8082",
-                "nodeC:34.227.14.1:8083"};
-        // Change client host and port accordingly
-
-        FileWriter csvWriter = new FileWriter("313-results.csv");
-        csvWriter.append("Node access");
-        csvWriter.append(",");
-        csvWriter.append("Operation");
-        csvWriter.append(",");
-        csvWriter.append("Maximum Latency");
-        csvWriter.append(",");
-        csvWriter.append("Minimum Latency");
-        csvWriter.append(",");
-        csvWriter.append("Average Latency");
-        csvWriter.append(",");
-        csvWriter.append("Latency Standard Deviation");
-        csvWriter.append(",");
-        csvWriter.append("Failures");
-        csvWriter.append(",");
-        csvWriter.append("Success %");
-        csvWriter.append("\n");
-        for (String node : nodes) {
-            String[] nodeConf = node.split(":");
-            System.out.println(nodeConf[0]);
-            Client client = new Client(nodeConf[1], Integer.parseInt(nodeConf[2]));
-            int putFail = 0;
-            int getFail = 0;
-            try {
-                long[] putLat = new long[iterations];
-                for (int i = 0; i < iterations; i++) {
-                    Instant start = Instant.now();
-                    boolean success = client.put("" + i, "Test: " + i);
-                    putLat[i] = Duration.between(start, Instant.now()).toMillis();
-                    if (!success) putFail++;
-                }
-                long[] getLat = new long[iterations];
-                for (int i = 0; i < iterations; i++) {
-                    Instant start = Instant.now();
-                    boolean success = client.get("" + i);
-                    getLat[i] = Duration.between(start, Instant.now()).toMillis();
-                    if (!success) getFail++;
-                }
-                for (int i = 0; i < iterations; i++) {
-                    client.delete("" + i);
-                }
-                long maxPut = 0l;
-                long maxGet = 0l;
-                long minPut = 1000000000000l;
-                long minGet = 1000000000000l;
-                long avgPut = 0l;
-                long avgGet = 0l;
-                for (int i = 0; i < iterations; i++) {
-                    long put = putLat[i];
-                    long get = getLat[i];
-                    if (put > maxPut) maxPut = put;
-                    if (put < minPut) minPut = put;
-                    if (get > maxGet) maxGet = get;
-                    if (get < minGet) minGet = get;
-                    avgPut += put;
-                    avgGet += get;
-                }
-                double avPut = (avgPut / iterations);
-                double avGet = (avgGet / iterations);
-                double putSD = standardDeviation(avPut, putLat);
-                double getSD = standardDeviation(avPut, getLat);
-                /*maxPut = maxPut/1_000_000_000;
-                minPut = minPut/1_000_000_000;
-                maxGet = maxGet/1_000_000_000;
-                minGet = minGet/1_000_000_000;*/
-                double failRatioPut = ((double) (iterations - putFail) / iterations) * 100;
-                double failRatioGet = ((double) (iterations - getFail) / iterations) * 100;
-                System.out.println("Results of execution: ");
-                System.out.println("PUT - max: " + maxPut + "ms min: "
-                        + minPut + "ms avg: "
-                        + avPut + "ms");
-                System.out.println("GET - max: " + maxGet
-                        + "ms min: " + minGet + "ms avg: "
-                        + avGet + "ms");
-                csvWriter.append(nodeConf[0]);
-                csvWriter.append(",");
-                csvWriter.append("PUT");
-                csvWriter.append(",");
-                csvWriter.append("" + maxPut);
-                csvWriter.append(",");
-                csvWriter.append("" + minPut);
-                csvWriter.append(",");
-                csvWriter.append("" + avPut);
-                csvWriter.append(",");
-                csvWriter.append("" + putSD);
-                csvWriter.append(",");
-                csvWriter.append("" + putFail);
-                csvWriter.append(",");
-                csvWriter.append("" + failRatioPut);
-                csvWriter.append("\n");
-                csvWriter.append(nodeConf[0]);
-                csvWriter.append(",");
-                csvWriter.append("GET");
-                csvWriter.append(",");
-                csvWriter.append("" + maxGet);
-                csvWriter.append(",");
-                csvWriter.append("" + minGet);
-                csvWriter.append(",");
-                csvWriter.append("" + avGet);
-                csvWriter.append(",");
-                csvWriter.append("" + getSD);
-                csvWriter.append(",");
-                csvWriter.append("" + getFail);
-                csvWriter.append(",");
-                csvWriter.append("" + failRatioGet);
-                csvWriter.append("\n");
-            } finally {
-                client.shutdown();
-            }
+    public StatsReply stats() {
+        try {
+            return blockingStub.stats(StatsRequest.getDefaultInstance());
+        } catch (StatusRuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     *  Batch put, one round trip for all pairs. Returns the success per pair.
+     */
+    public List<Boolean> multiPut(Map<String, String> pairs) {
+        KeyValueBatch.Builder request = KeyValueBatch.newBuilder();
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            request.addPairs(KeyValuePair.newBuilder().setKey(pair.getKey())
+                    .setValue(ByteString.copyFromUtf8(pair.getValue())));
+        }
+        try {
+            return successes(blockingStub.multiPut(request.build()));
+        } catch (StatusRuntimeException e) {
+            return Collections.nCopies(pairs.size(), false);
+        }
+    }
+
+    /**
+     *  Batch get. Returns the value per key, null if it couldn't be read.
+     */
+    public List<String> multiGet(List<String> keys) {
+        BatchResponse response;
+        try {
+            response = blockingStub.multiGet(keyBatch(keys));
+        } catch (StatusRuntimeException e) {
+            return Collections.nCopies(keys.size(), null);
+        }
+        List<String> values = new ArrayList<>();
+        for (Response result : response.getResponsesList()) {
+            values.add(result.getSuccess() ? result.getValue().toStringUtf8() : null);
+        }
+        return values;
+    }
+
+    /**
+     *  Batch delete. Returns the success per key.
+     */
+    public List<Boolean> multiDelete(List<String> keys) {
+        try {
+            return successes(blockingStub.multiDelete(keyBatch(keys)));
+        } catch (StatusRuntimeException e) {
+            return Collections.nCopies(keys.size(), false);
+        }
+    }
+
+    private static KeyBatch keyBatch(List<String> keys) {
+        KeyBatch.Builder request = KeyBatch.newBuilder();
+        for (String key : keys) {
+            request.addKeys(Key.newBuilder().setKey(key));
         }
-        csvWriter.flush();
-        csvWriter.close();
+        return request.build();
     }
 
-    private static double standardDeviation(double mean, long[] values){
-        double standardDeviation = 0.0;
-        for(long num: values) {
-            standardDeviation += Math.pow(num - mean, 2);
+    private static List<Boolean> successes(BatchResponse response) {
+        List<Boolean> successes = new ArrayList<>();
+        for (Response result : response.getResponsesList()) {
+            successes.add(result.getSuccess());
         }
-        return Math.sqrt(standardDeviation/values.length);
+        return successes;
     }
-}
\ No newline at end of file
+}
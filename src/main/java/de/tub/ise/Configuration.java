@@ -27,6 +27,52 @@ public class Configuration {
     private int qsize;
     private int qreadsize;
     private int qwritesize;
+    private int replicationFactor;
+    private int vnodes;
+    private double readRepairRate;
+    private long antiEntropyInterval;
+    private double antiEntropyRate;
+    private int hintsMax;
+    private String hintDir;
+    private double hintReplayRate;
+    private boolean replicationStream;
+    private long coalesceMicros;
+    private String walDir;
+    private WriteAheadLog.SyncPolicy fsync;
+    private long fsyncInterval;
+    private long walSegmentBytes;
+    private long snapshotInterval;
+    private boolean bootstrap;
+    private String storage;
+    private String dataDir;
+    private int dataFileBytes;
+    private long tombstoneGrace;
+    private long offHeapBytes;
+    private long cacheBytes;
+    private long readCacheLease;
+    private int readCacheSize;
+    private long statsInterval;
+    private double hedgePercentile;
+    private double deadlineFactor;
+    private long deadlineMin;
+    private boolean digestReads;
+    private String executor;
+    private int executorThreads;
+    private int bossThreads;
+    private int workerThreads;
+    private boolean epoll;
+    private int flowControlWindow;
+    private int maxMessageBytes;
+    private int maxConcurrentStreams;
+    private long keepAliveTime;
+    private long keepAliveTimeout;
+    private long permitKeepAliveTime;
+    private int peerChannels;
+    private String peerChannelPolicy;
+    private long peerKeepAliveTime;
+    private long peerIdleTimeout;
+    private int compressThreshold;
+    private long quorumTimeout;
 
     static Logger logger = Logger.getLogger(Configuration.class.getName());
 
@@ -72,6 +118,21 @@ public class Configuration {
         // Set N: quorum size = number of nodes
         qsize = hosts.size();
 
+        // Replication factor N, the number of nodes that store a key (default: all nodes)
+        // and number of tokens per node on the token ring
+        try {
+            replicationFactor = Integer.parseInt(attribute(doc.getDocumentElement(), "replication", "" + qsize));
+            vnodes = Integer.parseInt(attribute(doc.getDocumentElement(), "vnodes", "64"));
+        } catch (NumberFormatException nfe) {
+            logger.error("Replication factor or vnodes not int");
+            System.exit(1);
+        }
+        if (vnodes < 1) {
+            // an empty ring has no replicas for any key
+            logger.error("vnodes must be positive");
+            System.exit(1);
+        }
+
         // For Quorum (N,R, W), get values for R and W
         try {
             qreadsize = Integer.parseInt(doc.getDocumentElement().getAttributes().getNamedItem("qread").getNodeValue());
@@ -81,16 +142,120 @@ public class Configuration {
             logger.error("Quorum sizes not int");
             System.exit(1);
         }
+
+        // Optional tuning attributes of the quorum element
+        try {
+            readRepairRate = Double.parseDouble(attribute(doc.getDocumentElement(), "readRepairRate", "100"));
+            antiEntropyInterval = Long.parseLong(attribute(doc.getDocumentElement(), "antiEntropyInterval", "60"));
+            antiEntropyRate = Double.parseDouble(attribute(doc.getDocumentElement(), "antiEntropyRate", "1000"));
+            hintsMax = Integer.parseInt(attribute(doc.getDocumentElement(), "hintsMax", "100000"));
+            hintDir = attribute(doc.getDocumentElement(), "hintDir", "");
+            hintReplayRate = Double.parseDouble(attribute(doc.getDocumentElement(), "hintReplayRate", "500"));
+            replicationStream = Boolean.parseBoolean(attribute(doc.getDocumentElement(), "replicationStream", "false"));
+            coalesceMicros = Long.parseLong(attribute(doc.getDocumentElement(), "coalesceMicros", "200"));
+            walDir = attribute(doc.getDocumentElement(), "walDir", "");
+            fsyncInterval = Long.parseLong(attribute(doc.getDocumentElement(), "fsyncInterval", "5"));
+            walSegmentBytes = Long.parseLong(attribute(doc.getDocumentElement(), "walSegmentMB", "64")) << 20;
+            snapshotInterval = Long.parseLong(attribute(doc.getDocumentElement(), "snapshotInterval", "300"));
+            bootstrap = Boolean.parseBoolean(attribute(doc.getDocumentElement(), "bootstrap", "true"));
+            dataDir = attribute(doc.getDocumentElement(), "dataDir", "data");
+            // data files are mapped as a whole, which limits them to 2 GB
+            dataFileBytes = Math.min(Integer.parseInt(attribute(doc.getDocumentElement(), "dataFileMB", "256")), 2047)
+                    << 20;
+            tombstoneGrace = Long.parseLong(attribute(doc.getDocumentElement(), "tombstoneGrace", "86400"));
+            readCacheLease = Long.parseLong(attribute(doc.getDocumentElement(), "readCacheLease", "0"));
+            readCacheSize = Integer.parseInt(attribute(doc.getDocumentElement(), "readCacheSize", "10000"));
+            statsInterval = Long.parseLong(attribute(doc.getDocumentElement(), "statsInterval", "60"));
+            hedgePercentile = Double.parseDouble(attribute(doc.getDocumentElement(), "hedgePercentile", "95"));
+            deadlineFactor = Double.parseDouble(attribute(doc.getDocumentElement(), "deadlineFactor", "4"));
+            deadlineMin = Long.parseLong(attribute(doc.getDocumentElement(), "deadlineMin", "50"));
+            digestReads = Boolean.parseBoolean(attribute(doc.getDocumentElement(), "digestReads", "true"));
+            executorThreads = Integer.parseInt(attribute(doc.getDocumentElement(), "executorThreads", "0"));
+            bossThreads = Integer.parseInt(attribute(doc.getDocumentElement(), "bossThreads", "1"));
+            workerThreads = Integer.parseInt(attribute(doc.getDocumentElement(), "workerThreads", "0"));
+            epoll = Boolean.parseBoolean(attribute(doc.getDocumentElement(), "epoll", "false"));
+            flowControlWindow = Integer.parseInt(attribute(doc.getDocumentElement(), "flowControlWindowKB", "1024"))
+                    << 10;
+            maxMessageBytes = Integer.parseInt(attribute(doc.getDocumentElement(), "maxMessageMB", "4")) << 20;
+            maxConcurrentStreams = Integer.parseInt(attribute(doc.getDocumentElement(), "maxConcurrentStreams", "0"));
+            keepAliveTime = Long.parseLong(attribute(doc.getDocumentElement(), "keepAliveTime", "0"));
+            keepAliveTimeout = Long.parseLong(attribute(doc.getDocumentElement(), "keepAliveTimeout", "20"));
+            permitKeepAliveTime = Long.parseLong(attribute(doc.getDocumentElement(), "permitKeepAliveTime", "300"));
+            peerChannels = Integer.parseInt(attribute(doc.getDocumentElement(), "peerChannels", "1"));
+            peerKeepAliveTime = Long.parseLong(attribute(doc.getDocumentElement(), "peerKeepAliveTime", "0"));
+            peerIdleTimeout = Long.parseLong(attribute(doc.getDocumentElement(), "peerIdleTimeout", "0"));
+            compressThreshold = Integer.parseInt(attribute(doc.getDocumentElement(), "compressThreshold", "0"));
+            quorumTimeout = Long.parseLong(attribute(doc.getDocumentElement(), "quorumTimeout", "20000"));
+            cacheBytes = Long.parseLong(attribute(doc.getDocumentElement(), "cacheMB", "0")) << 20;
+            offHeapBytes = Long.parseLong(attribute(doc.getDocumentElement(), "offHeapMB", "1024")) << 20;
+        } catch (NumberFormatException nfe) {
+            logger.error("Tuning attributes of quorum element not numeric");
+            System.exit(1);
+        }
+        try {
+            fsync = WriteAheadLog.SyncPolicy.valueOf(
+                    attribute(doc.getDocumentElement(), "fsync", "batch").toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            logger.error("fsync must be always, batch or os");
+            System.exit(1);
+        }
+        storage = attribute(doc.getDocumentElement(), "storage", "memory").toLowerCase();
+        if (!storage.equals("memory") && !storage.equals("bitcask") && !storage.equals("offheap")) {
+            logger.error("storage must be memory, bitcask or offheap");
+            System.exit(1);
+        }
+        if (storage.equals("offheap") && tombstoneGrace > 0) {
+            logger.warn("storage=\"offheap\" keeps the tombstones of deleted keys, tombstoneGrace has no effect");
+        }
+        executor = attribute(doc.getDocumentElement(), "executor", "cached").toLowerCase();
+        if (!executor.equals("cached") && !executor.equals("fixed") && !executor.equals("workstealing")
+                && !executor.equals("direct")) {
+            logger.error("executor must be cached, fixed, workstealing or direct");
+            System.exit(1);
+        }
+        // also rejects NaN
+        if (!(readRepairRate >= 0)) {
+            logger.error("readRepairRate must not be negative, 0 disables read repair");
+            System.exit(1);
+        }
+        if (!(antiEntropyRate > 0)) {
+            logger.error("antiEntropyRate must be positive, antiEntropyInterval=0 disables anti-entropy");
+            System.exit(1);
+        }
+        if (!(hintReplayRate > 0)) {
+            logger.error("hintReplayRate must be positive");
+            System.exit(1);
+        }
+        if (quorumTimeout <= 0) {
+            logger.error("quorumTimeout must be positive");
+            System.exit(1);
+        }
+        peerChannelPolicy = attribute(doc.getDocumentElement(), "peerChannelPolicy", "leastoutstanding").toLowerCase();
+        if (!peerChannelPolicy.equals("roundrobin") && !peerChannelPolicy.equals("leastoutstanding")) {
+            logger.error("peerChannelPolicy must be roundrobin or leastoutstanding");
+            System.exit(1);
+        }
     }
 
     /**
-     * Check for valid quorum sizes R and W
+     * Value of an optional attribute, or the default if it is not set
+     */
+    private static String attribute(Node node, String name, String defaultValue) {
+        Node attribute = node.getAttributes().getNamedItem(name);
+        return attribute == null ? defaultValue : attribute.getNodeValue().trim();
+    }
+
+    /**
+     * Check for valid quorum sizes R and W and replication factor N
      */
     public boolean testQuorumSizes() {
-        if (qsize < qreadsize) {
+        if (replicationFactor < 1 || qsize < replicationFactor) {
+            return false;
+        }
+        if (replicationFactor < qreadsize) {
             return false;
         }
-        if (qsize < qwritesize) {
+        if (replicationFactor < qwritesize) {
             return false;
         }
         return true;
@@ -108,6 +273,346 @@ public class Configuration {
         return qreadsize;
     }
 
+    /**
+     * Number of nodes that store each key (N)
+     */
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    /**
+     * Number of tokens of each node on the token ring
+     */
+    public int getVnodes() {
+        return vnodes;
+    }
+
+    /**
+     * Maximum number of read repair writes per second sent by this node
+     */
+    public double getReadRepairRate() {
+        return readRepairRate;
+    }
+
+    /**
+     * Seconds between two anti-entropy rounds of this node, 0 disables them
+     */
+    public long getAntiEntropyInterval() {
+        return antiEntropyInterval;
+    }
+
+    /**
+     * Maximum number of entries per second this node sends for anti-entropy
+     */
+    public double getAntiEntropyRate() {
+        return antiEntropyRate;
+    }
+
+    /**
+     * Maximum number of keys with hints kept per unreachable peer
+     */
+    public int getHintsMax() {
+        return hintsMax;
+    }
+
+    /**
+     * Directory for the hint files, empty to keep hints in memory only
+     */
+    public String getHintDir() {
+        return hintDir;
+    }
+
+    /**
+     * Maximum number of hints per second replayed to a peer that came back
+     */
+    public double getHintReplayRate() {
+        return hintReplayRate;
+    }
+
+    /**
+     * True if writes are replicated over one long-lived stream per peer instead of
+     * unary calls
+     */
+    public boolean useReplicationStream() {
+        return replicationStream;
+    }
+
+    /**
+     * Window in microseconds in which writes to a peer are coalesced into one
+     * replication stream frame
+     */
+    public long getCoalesceMicros() {
+        return coalesceMicros;
+    }
+
+    /**
+     * Directory of the write-ahead log, empty if the store is not durable
+     */
+    public String getWalDir() {
+        return walDir;
+    }
+
+    /**
+     * When the write-ahead log is synced to disk
+     */
+    public WriteAheadLog.SyncPolicy getFsync() {
+        return fsync;
+    }
+
+    /**
+     * Milliseconds between two syncs of the write-ahead log with fsync="batch"
+     */
+    public long getFsyncInterval() {
+        return fsyncInterval;
+    }
+
+    /**
+     * Size in bytes after which the write-ahead log starts a new segment
+     */
+    public long getWalSegmentBytes() {
+        return walSegmentBytes;
+    }
+
+    /**
+     * Seconds between two snapshots of the store next to the write-ahead log, 0
+     * disables them
+     */
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * True if a node that starts with an empty store fetches the data from its peers
+     */
+    public boolean bootstrap() {
+        return bootstrap;
+    }
+
+    /**
+     * Storage engine of this node, memory, bitcask or offheap
+     */
+    public String getStorage() {
+        return storage;
+    }
+
+    /**
+     * Directory of the data files with storage="bitcask"
+     */
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    /**
+     * Size of a data file in bytes with storage="bitcask"
+     */
+    public int getDataFileBytes() {
+        return dataFileBytes;
+    }
+
+    /**
+     * Seconds after which a tombstone may be dropped with storage="memory" or
+     * "bitcask", 0 keeps tombstones
+     */
+    public long getTombstoneGrace() {
+        return tombstoneGrace;
+    }
+
+    /**
+     * Maximum direct memory in bytes used by the store with storage="offheap"
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * Memory budget in bytes of the cache in front of the data files with
+     * storage="bitcask", 0 if reads always go to the files
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Milliseconds a coordinator may answer quorum reads of a hot key from its read
+     * cache, 0 disables the cache
+     */
+    public long getReadCacheLease() {
+        return readCacheLease;
+    }
+
+    /**
+     * Maximum number of keys in the read cache of a coordinator
+     */
+    public int getReadCacheSize() {
+        return readCacheSize;
+    }
+
+    /**
+     * Seconds between two logged summaries of the latency histograms and counters, 0
+     * disables them
+     */
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * Percentile of a peer's recent answer times after which an unanswered replica
+     * read is hedged with a spare replica, 0 disables hedging
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Deadline of replica calls as multiple of the peer's recent 99th percentile, 0
+     * disables the deadlines
+     */
+    public double getDeadlineFactor() {
+        return deadlineFactor;
+    }
+
+    /**
+     * Lower bound of the replica call deadlines in milliseconds
+     */
+    public long getDeadlineMin() {
+        return deadlineMin;
+    }
+
+    /**
+     * Whether quorum reads ask the replicas for a digest of their value instead of
+     * the value itself
+     */
+    public boolean useDigestReads() {
+        return digestReads;
+    }
+
+    /**
+     * Executor of the server's request handlers: cached, fixed, workstealing or
+     * direct
+     */
+    public String getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Threads of the fixed and workstealing executors, 0 for one per processor
+     */
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+
+    /**
+     * Event loop threads accepting connections
+     */
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    /**
+     * Event loop threads serving connections, 0 for Netty's default of two per
+     * processor
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Whether the server uses the native epoll transport (Linux only)
+     */
+    public boolean useEpoll() {
+        return epoll;
+    }
+
+    /**
+     * Initial HTTP/2 flow control window of a stream in bytes
+     */
+    public int getFlowControlWindow() {
+        return flowControlWindow;
+    }
+
+    /**
+     * Largest message the server accepts in bytes
+     */
+    public int getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * Concurrent calls allowed per connection, 0 for no limit
+     */
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Seconds without reads after which the server pings a connection, 0 for gRPC's
+     * default of two hours
+     */
+    public long getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    /**
+     * Seconds the server waits for a ping to be answered before closing the connection
+     */
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Least number of seconds between the keepalive pings of a client, a client
+     * pinging more often is disconnected
+     */
+    public long getPermitKeepAliveTime() {
+        return permitKeepAliveTime;
+    }
+
+    /**
+     * Channels (connections) to every other node
+     */
+    public int getPeerChannels() {
+        return peerChannels;
+    }
+
+    /**
+     * How calls are spread over the channels to a node: roundrobin or
+     * leastoutstanding
+     */
+    public String getPeerChannelPolicy() {
+        return peerChannelPolicy;
+    }
+
+    /**
+     * Seconds without reads after which a node pings its connections to the other
+     * nodes, 0 disables the pings
+     */
+    public long getPeerKeepAliveTime() {
+        return peerKeepAliveTime;
+    }
+
+    /**
+     * Seconds without calls after which a connection to another node is closed, 0
+     * for gRPC's default of 30 minutes
+     */
+    public long getPeerIdleTimeout() {
+        return peerIdleTimeout;
+    }
+
+    /**
+     * Size in bytes from which values are stored and replicated compressed, 0
+     * disables compression
+     */
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    /**
+     * Milliseconds a coordinator waits for replica answers before the quorum fails
+     */
+    public long getQuorumTimeout() {
+        return quorumTimeout;
+    }
+
     public String thisNode() {
         return myNode;
     }
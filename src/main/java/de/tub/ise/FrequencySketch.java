@@ -0,0 +1,76 @@
+package de.tub.ise;
+
+/**
+ * Approximate access frequencies of keys (count-min sketch with 4-bit counters),
+ * used by {@link CachingEngine} to decide which entries are worth caching.
+ * <p>
+ * Every key maps to one counter in each of four rows; its frequency is the
+ * smallest of the four. Counters saturate at 15, and all of them are halved after
+ * ten increments per counter, so the sketch follows changes of the working set
+ * instead of remembering old popularity forever. Not thread-safe.
+ */
+public class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final long[] SEEDS = {0x97cb3127L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0x9e3779b97f4a7c15L};
+    // mask of the lower three bits of every 4-bit counter in a long
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param counters expected number of distinct keys that matter, rounded up to a
+     *                 power of two
+     */
+    public FrequencySketch(int counters) {
+        int size = Integer.highestOneBit(Math.max(64, counters - 1) << 1);
+        // 16 counters per long, the rows share the table with different hashes
+        this.table = new long[size / 16 * ROWS];
+        this.mask = table.length - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Estimated number of recent accesses of the key, at most 15
+     */
+    public int frequency(long hash) {
+        int frequency = 15;
+        for (int row = 0; row < ROWS; row++) {
+            long h = Hashing.mix(hash ^ SEEDS[row]);
+            int index = (int) h & mask;
+            int shift = (int) ((h >>> 32) & 15) << 2;
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 15));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key
+     */
+    public void increment(long hash) {
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            long h = Hashing.mix(hash ^ SEEDS[row]);
+            int index = (int) h & mask;
+            int shift = (int) ((h >>> 32) & 15) << 2;
+            if (((table[index] >>> shift) & 15) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    // ages all counters by halving them
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+}
@@ -0,0 +1,111 @@
+package de.tub.ise;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Storage engine that keeps all entries on the heap in a ConcurrentHashMap.
+ * <p>
+ * With a grace period, tombstones older than it are removed by a periodic sweep,
+ * so deleted keys don't hold memory forever.
+ */
+public class HashMapEngine implements StorageEngine {
+
+    static Logger logger = Logger.getLogger(HashMapEngine.class.getName());
+
+    private static final long PURGE_INTERVAL_SECONDS = 30;
+
+    private final ConcurrentHashMap<String, VersionedValue> memory = new ConcurrentHashMap<>();
+    private final long graceMillis;
+    private final ScheduledExecutorService background;
+
+    /**
+     * Engine that keeps tombstones
+     */
+    public HashMapEngine() {
+        this(0);
+    }
+
+    /**
+     * @param graceSeconds age after which a tombstone is removed, 0 keeps tombstones
+     */
+    public HashMapEngine(long graceSeconds) {
+        this.graceMillis = TimeUnit.SECONDS.toMillis(graceSeconds);
+        if (graceMillis > 0) {
+            background = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "tombstone-purge");
+                t.setDaemon(true);
+                return t;
+            });
+            background.scheduleWithFixedDelay(this::purge, PURGE_INTERVAL_SECONDS, PURGE_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+        } else {
+            background = null;
+        }
+    }
+
+    @Override
+    public VersionedValue get(String key) {
+        return memory.get(key);
+    }
+
+    @Override
+    public boolean putIfNewer(String key, VersionedValue update, Memory.ChangeListener changed) {
+        while (true) {
+            VersionedValue current = memory.get(key);
+            if (!update.newerThan(current)) {
+                return false;
+            }
+            boolean swapped = current == null ? memory.putIfAbsent(key, update) == null
+                    : memory.replace(key, current, update);
+            if (swapped) {
+                changed.changed(key, current, update);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the tombstones older than the grace period, run periodically on the
+     * background thread
+     */
+    void purge() {
+        if (graceMillis <= 0) {
+            return;
+        }
+        long horizon = System.currentTimeMillis() - graceMillis;
+        long[] purged = new long[1];
+        memory.forEach((key, entry) -> {
+            // a newer write of the key in the meantime keeps it
+            if (entry.isDeleted() && HybridClock.millis(entry.getVersion()) < horizon
+                    && memory.remove(key, entry)) {
+                purged[0]++;
+            }
+        });
+        if (purged[0] > 0) {
+            logger.info("Removed " + purged[0] + " expired tombstones");
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, VersionedValue> action) {
+        memory.forEach(action);
+    }
+
+    @Override
+    public long size() {
+        return memory.size();
+    }
+
+    @Override
+    public void close() {
+        if (background != null) {
+            background.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package de.tub.ise;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * 64 bit hash functions shared by the token ring and the Merkle trees. Not
+ * cryptographic, but stable across JVMs so all nodes agree on the hashes.
+ */
+public final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * Well spread 64 bit hash of a string.
+     */
+    public static long hash(String s) {
+        return mix(fnv1a(s));
+    }
+
+    /**
+     * Well spread 64 bit hash of a byte array.
+     */
+    public static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * 64 bit FNV-1a over the bytes.
+     */
+    static long fnv1a(ByteString bytes) {
+        long h = 0xcbf29ce484222325L;
+        ByteString.ByteIterator it = bytes.iterator();
+        while (it.hasNext()) {
+            h ^= it.nextByte() & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters of the string.
+     */
+    static long fnv1a(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits of the input over the whole long.
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,361 @@
+package de.tub.ise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.tub.ise.KeyValueStoreGrpc.KeyValueStoreStub;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import org.apache.log4j.Logger;
+
+/**
+ * Hinted handoff: remembers the writes and deletes a peer missed and replays them
+ * once the peer is reachable again.
+ * <p>
+ * Hints are kept per peer and per key, a newer hint for the same key replaces the
+ * older one, and at most {@code hintsMax} keys are kept per peer (anti-entropy
+ * covers whatever is dropped beyond that). If a hint directory is configured, hints
+ * are also appended to one file per peer, so they survive a restart of this node.
+ * <p>
+ * A health check looks at the channel of every peer with pending hints once a
+ * second; when the channel is ready, the hints are replayed in batches, one
+ * replicateBatch call at a time. The next batch follows as soon as the previous one
+ * was answered, paced to {@code hintReplayRate} hints per second and peer so the
+ * recovering peer isn't flooded. A batch that fails or isn't answered within the
+ * timeout stops the replay, a later check resumes it.
+ */
+public class HintedHandoff {
+
+    static Logger logger = Logger.getLogger(HintedHandoff.class.getName());
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private static final int BATCH_SIZE = 100;
+
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final int maxHints;
+    private final File hintDir;
+    private final double replayRate;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "hinted-handoff");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param channels   channels to the other nodes, by node name
+     * @param maxHints   maximum number of keys with hints per peer
+     * @param hintDir    directory for the hint files, null to keep hints in memory only
+     * @param replayRate hints per second replayed to each recovering peer
+     * @param timeoutMillis deadline of a replayed batch
+     */
+    public HintedHandoff(Map<String, ManagedChannel> channels, int maxHints, File hintDir, double replayRate,
+                         long timeoutMillis) {
+        this.maxHints = maxHints;
+        this.timeoutMillis = timeoutMillis;
+        this.hintDir = hintDir;
+        this.replayRate = replayRate;
+        if (hintDir != null && !hintDir.isDirectory() && !hintDir.mkdirs()) {
+            logger.error("Cannot create hint directory " + hintDir + ", keeping hints in memory only");
+        }
+        for (Map.Entry<String, ManagedChannel> entry : channels.entrySet()) {
+            Peer peer = new Peer(entry.getKey(), entry.getValue());
+            peer.load();
+            peers.put(entry.getKey(), peer);
+        }
+    }
+
+    /**
+     * Starts the health check of the peers.
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(() -> {
+            for (Peer peer : peers.values()) {
+                try {
+                    peer.check();
+                } catch (RuntimeException e) {
+                    logger.error("Hint replay to " + peer.name + " failed", e);
+                }
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the health check and the replay, pending hints stay in their files.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Wraps the observer of a replica call, so that a failed call leaves a hint for
+     * the peer. {@code write} is the replicated entry, with the deleted flag set for
+     * deletes.
+     */
+    public StreamObserver<Response> onFailure(String peer, KeyValuePair write, StreamObserver<Response> observer) {
+        return new StreamObserver<Response>() {
+            @Override
+            public void onNext(Response response) {
+                observer.onNext(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                add(peer, write);
+                observer.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                observer.onCompleted();
+            }
+        };
+    }
+
+    /**
+     * Remembers a write the peer missed.
+     */
+    public void add(String peerName, KeyValuePair write) {
+        Peer peer = peers.get(peerName);
+        if (peer != null) {
+            peer.add(write);
+        }
+    }
+
+    /**
+     * Number of keys with pending hints for the peer.
+     */
+    public int pending(String peerName) {
+        Peer peer = peers.get(peerName);
+        return peer == null ? 0 : peer.hints.size();
+    }
+
+    /**
+     * Hints of one peer
+     */
+    private class Peer {
+        private final String name;
+        private final ManagedChannel channel;
+        private final KeyValueStoreStub stub;
+        private final ConcurrentHashMap<String, KeyValuePair> hints = new ConcurrentHashMap<>();
+        private final AtomicBoolean replaying = new AtomicBoolean();
+        private final RateLimiter limiter = new RateLimiter(replayRate, BATCH_SIZE);
+        private final File file;
+        private DataOutputStream out;
+        private int appended;
+
+        Peer(String name, ManagedChannel channel) {
+            this.name = name;
+            this.channel = channel;
+            this.stub = KeyValueStoreGrpc.newStub(channel);
+            this.file = hintDir == null ? null : new File(hintDir, "hints-" + name + ".log");
+        }
+
+        void add(KeyValuePair write) {
+            if (hints.size() >= maxHints && !hints.containsKey(write.getKey())) {
+                logger.warn("Too many hints for " + name + ", dropping hint for key " + write.getKey());
+                return;
+            }
+            hints.merge(write.getKey(), write, (current, candidate) ->
+                    candidate.getVersion() > current.getVersion() ? candidate : current);
+            logger.debug("Stored hint for " + name + " and key " + write.getKey());
+            append(write);
+        }
+
+        /**
+         * Starts replaying the hints if the peer is reachable and no replay is running.
+         */
+        void check() {
+            if (hints.isEmpty()) {
+                return;
+            }
+            ConnectivityState state = channel.getState(true);
+            if (state != ConnectivityState.READY || !replaying.compareAndSet(false, true)) {
+                return;
+            }
+            logger.info("Replaying " + hints.size() + " hints to " + name);
+            replay();
+        }
+
+        /**
+         * Sends the next batch of hints, as soon as the rate allows
+         */
+        private void replay() {
+            KeyValueBatch.Builder batch = KeyValueBatch.newBuilder();
+            for (KeyValuePair hint : hints.values()) {
+                if (batch.getPairsCount() >= BATCH_SIZE) {
+                    break;
+                }
+                batch.addPairs(hint);
+            }
+            if (batch.getPairsCount() == 0) {
+                replayed();
+                return;
+            }
+            long wait = limiter.reserve(batch.getPairsCount());
+            if (wait > 0) {
+                executor.schedule(() -> send(batch.build()), wait, TimeUnit.NANOSECONDS);
+            } else {
+                send(batch.build());
+            }
+        }
+
+        private void send(KeyValueBatch batch) {
+            logger.debug("Replaying " + batch.getPairsCount() + " of " + hints.size() + " hints to " + name);
+            List<KeyValuePair> sent = batch.getPairsList();
+            try {
+                stub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS).replicateBatch(batch,
+                        new StreamObserver<BatchResponse>() {
+                            private boolean progress;
+
+                            @Override
+                            public void onNext(BatchResponse response) {
+                                int count = Math.min(response.getResponsesCount(), sent.size());
+                                for (int i = 0; i < count; i++) {
+                                    // a newer hint may have replaced this one meanwhile
+                                    if (response.getResponses(i).getSuccess()
+                                            && hints.remove(sent.get(i).getKey(), sent.get(i))) {
+                                        progress = true;
+                                    }
+                                }
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                logger.debug("Hint replay to " + name + " failed: " + t.getMessage());
+                                replayed();
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                // hints the peer rejected wait for the next check
+                                if (progress && !hints.isEmpty()) {
+                                    executor.execute(Peer.this::next);
+                                } else {
+                                    replayed();
+                                }
+                            }
+                        });
+            } catch (RuntimeException e) {
+                logger.error("Hint replay to " + name + " failed", e);
+                replaying.set(false);
+            }
+        }
+
+        private void next() {
+            try {
+                replay();
+            } catch (RuntimeException e) {
+                logger.error("Hint replay to " + name + " failed", e);
+                replaying.set(false);
+            }
+        }
+
+        private void replayed() {
+            replaying.set(false);
+            if (hints.isEmpty()) {
+                logger.info("Replayed all hints to " + name);
+                truncate();
+            }
+        }
+
+        /**
+         * Appends the hint to the hint file, rewriting the file from the pending
+         * hints when it grew too much.
+         */
+        private synchronized void append(KeyValuePair write) {
+            if (file == null) {
+                return;
+            }
+            try {
+                if (out == null || appended > 2 * maxHints) {
+                    rewrite();
+                } else {
+                    write(out, write);
+                    out.flush();
+                    appended++;
+                }
+            } catch (IOException e) {
+                logger.error("Cannot write hint file " + file, e);
+            }
+        }
+
+        private synchronized void rewrite() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+            appended = 0;
+            for (KeyValuePair hint : hints.values()) {
+                write(out, hint);
+                appended++;
+            }
+            out.flush();
+        }
+
+        private synchronized void truncate() {
+            if (file == null || !hints.isEmpty()) {
+                return;
+            }
+            try {
+                rewrite();
+            } catch (IOException e) {
+                logger.error("Cannot truncate hint file " + file, e);
+            }
+        }
+
+        /**
+         * Reads the hints left from before a restart. A record with an impossible
+         * length, e.g. torn by a crash, ends the valid hints, the rest of the file is
+         * dropped with the next rewrite.
+         */
+        void load() {
+            if (file == null || !file.isFile()) {
+                return;
+            }
+            long left = file.length();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (left >= 4) {
+                    int length = in.readInt();
+                    left -= 4;
+                    if (length < 0 || length > left) {
+                        logger.warn("Hint file " + file + " has a torn record, dropping " + left + " bytes");
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    left -= length;
+                    KeyValuePair hint = KeyValuePair.parseFrom(record);
+                    hints.merge(hint.getKey(), hint, (current, candidate) ->
+                            candidate.getVersion() > current.getVersion() ? candidate : current);
+                }
+            } catch (IOException e) {
+                logger.error("Cannot read hint file " + file + ", keeping " + hints.size() + " hints", e);
+            }
+            if (!hints.isEmpty()) {
+                logger.info("Loaded " + hints.size() + " hints for " + name);
+            }
+        }
+
+        private void write(DataOutputStream out, KeyValuePair hint) throws IOException {
+            byte[] record = hint.toByteArray();
+            out.writeInt(record.length);
+            out.write(record);
+        }
+    }
+}
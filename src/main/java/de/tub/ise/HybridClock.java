@@ -0,0 +1,53 @@
+package de.tub.ise;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock used to version the values of the store.
+ * <p>
+ * A timestamp packs the wall clock in milliseconds into the upper 48 bits and a
+ * logical counter into the lower 16 bits. Timestamps handed out by one node are
+ * strictly increasing, and after {@link #update(long)} they are also larger than
+ * every timestamp seen from other nodes, so a later write always gets the larger
+ * version even if the node clocks are skewed.
+ */
+public class HybridClock {
+
+    private static final int LOGICAL_BITS = 16;
+
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * Timestamp for a new local event, e.g. a write coordinated by this node.
+     */
+    public long now() {
+        long physical = System.currentTimeMillis() << LOGICAL_BITS;
+        while (true) {
+            long previous = last.get();
+            long next = physical > previous ? physical : previous + 1;
+            if (last.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Merges a timestamp received from another node, so later local timestamps
+     * are ordered after it.
+     */
+    public void update(long remote) {
+        while (true) {
+            long previous = last.get();
+            if (remote <= previous || last.compareAndSet(previous, remote)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wall clock part of a timestamp in milliseconds.
+     */
+    public static long millis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+}
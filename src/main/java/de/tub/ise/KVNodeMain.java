@@ -1,5 +1,6 @@
 package de.tub.ise;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Scanner;
 
@@ -54,10 +55,39 @@ public class KVNodeMain {
 
 		//Test configuration file for valid quorum sizes
 		if (!KVNodeMain.config.testQuorumSizes()){
-			logger.error("Please enter valid quorum sizes. Must be equal or smaller than the number of nodes");
+			logger.error("Please enter valid quorum sizes. Must be equal or smaller than the replication factor, "
+					+ "which must be equal or smaller than the number of nodes");
 			System.exit(1);
 		}
 
+		//Open the data files, if the store is kept on disk
+		if (KVNodeMain.config.getStorage().equals("bitcask")) {
+			BitcaskEngine engine = new BitcaskEngine(new File(KVNodeMain.config.getDataDir(), KVNodeMain.config.thisNode()),
+					KVNodeMain.config.getDataFileBytes(), KVNodeMain.config.getTombstoneGrace());
+			engine.open();
+			// keep the hot entries in memory within the budget
+			Memory.use(KVNodeMain.config.getCacheBytes() > 0
+					? new CachingEngine(engine, KVNodeMain.config.getCacheBytes()) : engine);
+		} else if (KVNodeMain.config.getStorage().equals("offheap")) {
+			Memory.use(new OffHeapEngine(KVNodeMain.config.getOffHeapBytes()));
+		} else {
+			Memory.use(new HashMapEngine(KVNodeMain.config.getTombstoneGrace()));
+		}
+
+		//Restore the store from the latest snapshot and the write-ahead log, if it is durable
+		if (!KVNodeMain.config.getWalDir().isEmpty()) {
+			// one subdirectory per node, so nodes on one host can share the configuration
+			File walDir = new File(KVNodeMain.config.getWalDir(), KVNodeMain.config.thisNode());
+			WriteAheadLog wal = new WriteAheadLog(walDir, KVNodeMain.config.getWalSegmentBytes(),
+					KVNodeMain.config.getFsync(), KVNodeMain.config.getFsyncInterval());
+			Snapshots snapshots = new Snapshots(walDir);
+			Memory.recover(wal, snapshots);
+			snapshots.start(wal, KVNodeMain.config.getSnapshotInterval());
+		}
+
+		//Log the latency histograms and counters periodically
+		Metrics.start(KVNodeMain.config.thisNode(), KVNodeMain.config.getStatsInterval());
+
 		//Start server to listen to requests
 		try {
 			Receiver receiver = new Receiver();
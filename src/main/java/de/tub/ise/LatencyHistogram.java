@@ -0,0 +1,133 @@
+package de.tub.ise;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in the style of HdrHistogram.
+ * <p>
+ * Values below 64 have their own bucket; above, every power of two is split into
+ * 32 buckets, so a recorded value is off by at most 1/32 (about 3%) whatever its
+ * magnitude. Recording is a few atomic increments, which makes it cheap enough for
+ * every request.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int HALF = SUB / 2;
+    private static final int BUCKETS = HALF * (64 - SUB_BITS) + SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, usually nanoseconds. Negative values count as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            // retry
+        }
+    }
+
+    /**
+     * Consistent enough copy of the histogram to compute percentiles from
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.get(), max.get());
+    }
+
+    private static int bucketOf(long v) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - SUB_BITS + 1);
+        return shift == 0 ? (int) v : HALF * shift + (int) (v >>> shift);
+    }
+
+    // highest value that falls into the bucket
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        long sub = bucket - HALF * shift;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Point-in-time view of a histogram
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Standard deviation of the recorded values, from the bucket midpoints
+         */
+        public double getStdDev() {
+            if (count == 0) {
+                return 0;
+            }
+            double mean = getMean();
+            double squares = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    double mid = i == 0 ? 0 : (upperBoundOf(i - 1) + 1 + upperBoundOf(i)) / 2.0;
+                    squares += counts[i] * (mid - mean) * (mid - mean);
+                }
+            }
+            return Math.sqrt(squares / count);
+        }
+
+        /**
+         * Value below or at which the given percentage (0 to 100) of the recorded
+         * values lie, within the bucket precision
+         */
+        public long percentile(double percent) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
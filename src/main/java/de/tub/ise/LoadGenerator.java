@@ -0,0 +1,393 @@
+package de.tub.ise;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.protobuf.ByteString;
+import de.tub.ise.KeyValueStoreGrpc.KeyValueStoreStub;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Benchmark tool that drives a YCSB-style workload against the cluster with the
+ * asynchronous stub.
+ * <p>
+ * With a target rate the arrivals are open-loop: request i is due at
+ * {@code start + i / rate} whether or not earlier requests have been answered, and
+ * its latency is measured from that time. A stalled cluster therefore shows up in
+ * the percentiles instead of silently slowing down the generator (coordinated
+ * omission). At most {@code concurrency} requests are outstanding; a request that
+ * has to wait for one of them is late, which counts as latency as well. Without a
+ * rate the generator runs closed-loop and measures from the send.
+ * <p>
+ * Requests of the warmup period are not recorded. A read counts as an error only
+ * if it fails; a read of a key without value (quorum reached, but never written or
+ * deleted) counts as a miss. The latencies of reads and updates go into
+ * {@link LatencyHistogram}s in nanoseconds and are written to CSV and JSON files.
+ */
+public class LoadGenerator {
+
+    private static final double[] PERCENTILES = {50, 75, 90, 95, 99, 99.9, 99.99};
+
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<KeyValueStoreStub> stubs = new ArrayList<>();
+    private final int concurrency;
+    private final double rate;
+    private final double readProportion;
+    private final KeyChooser keys;
+    private final int valueSize;
+    private final byte[] randomBytes;
+    private final Semaphore outstanding;
+    private final Operation read = new Operation("read");
+    private final Operation update = new Operation("update");
+    private volatile long recordFrom;
+
+    LoadGenerator(List<String> targets, int concurrency, double rate, double readProportion, KeyChooser keys,
+                  int valueSize) {
+        for (String target : targets) {
+            String[] hostPort = target.split(":");
+            ManagedChannel channel = ManagedChannelBuilder.forAddress(hostPort[0], Integer.parseInt(hostPort[1]))
+                    .usePlaintext().build();
+            channels.add(channel);
+            stubs.add(KeyValueStoreGrpc.newStub(channel));
+        }
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.readProportion = readProportion;
+        this.keys = keys;
+        this.valueSize = valueSize;
+        this.randomBytes = new byte[valueSize + 65536];
+        new Random().nextBytes(randomBytes);
+        this.outstanding = new Semaphore(concurrency);
+    }
+
+    /**
+     * Writes every record once (YCSB load phase), with the concurrency limit but no
+     * rate limit
+     */
+    void load(long records) throws InterruptedException {
+        for (long i = 0; i < records; i++) {
+            outstanding.acquire();
+            KeyValuePair pair = KeyValuePair.newBuilder().setKey(KeyChooser.key(i)).setValue(value()).build();
+            stubs.get((int) (i % stubs.size())).put(pair, observer(null, 0));
+        }
+        drain();
+    }
+
+    /**
+     * Runs the workload for warmup plus duration seconds, recording only after the
+     * warmup
+     */
+    void run(long warmupSeconds, long durationSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        double interval = rate > 0 ? 1e9 / rate : 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long i = 0; ; i++) {
+            long intended = rate > 0 ? start + (long) (i * interval) : System.nanoTime();
+            if (intended - end >= 0) {
+                break;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            outstanding.acquire();
+            KeyValueStoreStub stub = stubs.get((int) (i % stubs.size()));
+            String key = KeyChooser.key(keys.next());
+            // closed loop: the time starts when a slot is free
+            long measureFrom = rate > 0 ? intended : System.nanoTime();
+            if (random.nextDouble() < readProportion) {
+                stub.get(Key.newBuilder().setKey(key).build(), observer(read, measureFrom));
+            } else {
+                stub.put(KeyValuePair.newBuilder().setKey(key).setValue(value()).build(),
+                        observer(update, measureFrom));
+            }
+        }
+        drain();
+        read.elapsedNanos = update.elapsedNanos = System.nanoTime() - recordFrom;
+    }
+
+    private ByteString value() {
+        return ByteString.copyFrom(randomBytes, ThreadLocalRandom.current().nextInt(65536), valueSize);
+    }
+
+    private StreamObserver<Response> observer(Operation operation, long measureFrom) {
+        return new StreamObserver<Response>() {
+            @Override
+            public void onNext(Response response) {
+                // a read of a key without value is not a failure
+                finish(response.getSuccess() || response.getMissing(), response.getMissing());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                finish(false, false);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            private void finish(boolean success, boolean missing) {
+                if (operation != null && measureFrom - recordFrom >= 0) {
+                    operation.histogram.record(System.nanoTime() - measureFrom);
+                    if (!success) {
+                        operation.errors.incrementAndGet();
+                    }
+                    if (missing) {
+                        operation.misses.incrementAndGet();
+                    }
+                }
+                outstanding.release();
+            }
+        };
+    }
+
+    // waits for all outstanding requests
+    private void drain() throws InterruptedException {
+        if (!outstanding.tryAcquire(concurrency, 60, TimeUnit.SECONDS)) {
+            System.err.println("Gave up waiting for " + (concurrency - outstanding.availablePermits())
+                    + " outstanding requests");
+            return;
+        }
+        outstanding.release(concurrency);
+    }
+
+    void shutdown() throws InterruptedException {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes one line per operation with throughput and latencies in nanoseconds
+     */
+    void writeCsv(String file) throws IOException {
+        try (Writer out = new FileWriter(file)) {
+            out.write("operation,count,errors,misses,throughput,mean,stddev");
+            for (double p : PERCENTILES) {
+                out.write(",p" + format(p));
+            }
+            out.write(",max\n");
+            for (Operation op : new Operation[]{read, update}) {
+                LatencyHistogram.Snapshot s = op.histogram.snapshot();
+                out.write(String.format(Locale.ROOT, "%s,%d,%d,%d,%.1f,%.1f,%.1f", op.name, s.getCount(),
+                        op.errors.get(), op.misses.get(), op.throughput(s), s.getMean(), s.getStdDev()));
+                for (double p : PERCENTILES) {
+                    out.write("," + s.percentile(p));
+                }
+                out.write("," + s.getMax() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Writes the same numbers as {@link #writeCsv(String)} as one JSON object
+     */
+    void writeJson(String file) throws IOException {
+        try (Writer out = new FileWriter(file)) {
+            out.write("{\n  \"unit\": \"ns\",\n  \"operations\": [");
+            String separator = "\n";
+            for (Operation op : new Operation[]{read, update}) {
+                LatencyHistogram.Snapshot s = op.histogram.snapshot();
+                out.write(separator + String.format(Locale.ROOT, "    {\"operation\": \"%s\", \"count\": %d, "
+                                + "\"errors\": %d, \"misses\": %d, \"throughput\": %.1f, \"mean\": %.1f, "
+                                + "\"stddev\": %.1f, \"percentiles\": {", op.name, s.getCount(), op.errors.get(),
+                        op.misses.get(), op.throughput(s), s.getMean(), s.getStdDev()));
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    out.write((i > 0 ? ", " : "") + "\"" + format(PERCENTILES[i]) + "\": " + s.percentile(PERCENTILES[i]));
+                }
+                out.write("}, \"max\": " + s.getMax() + "}");
+                separator = ",\n";
+            }
+            out.write("\n  ]\n}\n");
+        }
+    }
+
+    void printSummary() {
+        for (Operation op : new Operation[]{read, update}) {
+            LatencyHistogram.Snapshot s = op.histogram.snapshot();
+            System.out.println(String.format(Locale.ROOT,
+                    "%-6s %8d ops %6d errors %6d misses %9.1f ops/s  mean %8.1fus  p50 %8.1fus  p99 %8.1fus  "
+                            + "p99.9 %8.1fus  max %8.1fus", op.name, s.getCount(), op.errors.get(), op.misses.get(),
+                    op.throughput(s),
+                    s.getMean() / 1000, s.percentile(50) / 1000.0, s.percentile(99) / 1000.0,
+                    s.percentile(99.9) / 1000.0, s.getMax() / 1000.0));
+        }
+    }
+
+    private static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    /**
+     * Recorded latencies and errors of one kind of request
+     */
+    private static class Operation {
+        private final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private volatile long elapsedNanos;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        double throughput(LatencyHistogram.Snapshot s) {
+            return elapsedNanos == 0 ? 0 : s.getCount() * 1e9 / elapsedNanos;
+        }
+    }
+
+    /**
+     * Picks record numbers uniformly or Zipfian distributed. Zipfian ranks are
+     * scrambled, so the popular records are spread over the ring instead of being
+     * neighbours. Only used by the dispatching thread.
+     */
+    static class KeyChooser {
+        private final long records;
+        private final double theta;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+        private final Random random = new Random();
+
+        /**
+         * @param theta skew of the Zipfian distribution (YCSB uses 0.99), 0 for uniform
+         */
+        KeyChooser(long records, double theta) {
+            this.records = records;
+            this.theta = theta;
+            if (theta > 0) {
+                double zeta = 0;
+                for (long i = 1; i <= records; i++) {
+                    zeta += 1 / Math.pow(i, theta);
+                }
+                this.zetan = zeta;
+                this.alpha = 1 / (1 - theta);
+                double zeta2 = 1 + Math.pow(0.5, theta);
+                this.eta = (1 - Math.pow(2.0 / records, 1 - theta)) / (1 - zeta2 / zetan);
+            } else {
+                this.zetan = this.alpha = this.eta = 0;
+            }
+        }
+
+        long next() {
+            if (theta <= 0) {
+                return (long) (random.nextDouble() * records);
+            }
+            // Gray et al., "Quickly generating billion-record synthetic databases"
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < 1 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = Math.min(records - 1, (long) (records * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            return Math.floorMod(Hashing.mix(rank), records);
+        }
+
+        static String key(long record) {
+            return "user" + record;
+        }
+    }
+
+    /**
+     * Parses the options, optionally loads the records, runs the workload and writes
+     * the results.
+     */
+    public static void main(String[] args) throws ParseException, InterruptedException, IOException {
+        Options options = new Options();
+        options.addOption("t", "targets", true, "comma separated host:port of the nodes to send requests to "
+                + "(default localhost:8081)");
+        options.addOption("c", "concurrency", true, "maximum outstanding requests (default 64)");
+        options.addOption("r", "rate", true, "target requests per second, 0 for closed loop (default 0)");
+        options.addOption("w", "workload", true, "YCSB core workload a (50% reads), b (95%), c (100%) "
+                + "or w (0%) (default a)");
+        options.addOption("p", "readProportion", true, "fraction of reads, overrides the workload");
+        options.addOption("k", "records", true, "number of records (default 10000)");
+        options.addOption("z", "zipfian", true, "skew of the key distribution, 0 for uniform (default 0.99)");
+        options.addOption("s", "valueSize", true, "value size in bytes (default 100)");
+        options.addOption("W", "warmup", true, "seconds before the latencies are recorded (default 5)");
+        options.addOption("d", "duration", true, "seconds of recorded load (default 30)");
+        options.addOption("l", "load", false, "write all records before the run");
+        options.addOption("o", "output", true, "prefix of the CSV and JSON result files (default results)");
+        options.addOption("h", "help", false, "print this help");
+
+        CommandLine line = new DefaultParser().parse(options, args);
+        if (line.hasOption("h")) {
+            new HelpFormatter().printHelp("LoadGenerator", options);
+            return;
+        }
+        String workload = line.getOptionValue("w", "a");
+        double readProportion;
+        switch (workload) {
+            case "a":
+                readProportion = 0.5;
+                break;
+            case "b":
+                readProportion = 0.95;
+                break;
+            case "c":
+                readProportion = 1;
+                break;
+            case "w":
+                readProportion = 0;
+                break;
+            default:
+                throw new ParseException("Unknown workload " + workload);
+        }
+        if (line.hasOption("p")) {
+            readProportion = Double.parseDouble(line.getOptionValue("p"));
+        }
+        long records = Long.parseLong(line.getOptionValue("k", "10000"));
+        double theta = Double.parseDouble(line.getOptionValue("z", "0.99"));
+        if (theta >= 1) {
+            throw new ParseException("The Zipfian skew must be below 1");
+        }
+        KeyChooser keys = new KeyChooser(records, theta);
+        List<String> targets = new ArrayList<>();
+        for (String target : line.getOptionValue("t", "localhost:8081").split(",")) {
+            targets.add(target.trim());
+        }
+        LoadGenerator generator = new LoadGenerator(targets, Integer.parseInt(line.getOptionValue("c", "64")),
+                Double.parseDouble(line.getOptionValue("r", "0")), readProportion, keys,
+                Integer.parseInt(line.getOptionValue("s", "100")));
+        try {
+            if (line.hasOption("l")) {
+                System.out.println("Loading " + records + " records");
+                generator.load(records);
+            }
+            System.out.println("Running workload " + workload + " (" + readProportion * 100 + "% reads)");
+            generator.run(Long.parseLong(line.getOptionValue("W", "5")),
+                    Long.parseLong(line.getOptionValue("d", "30")));
+        } finally {
+            generator.shutdown();
+        }
+        generator.printSummary();
+        String output = line.getOptionValue("o", "results");
+        generator.writeCsv(output + ".csv");
+        generator.writeJson(output + ".json");
+    }
+}
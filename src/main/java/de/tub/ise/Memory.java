@@ -1,30 +1,212 @@
 package de.tub.ise;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 
+import com.google.protobuf.ByteString;
 import org.apache.log4j.Logger;
 
 /**
  * Methods to store key and retrieve key-value pairs from memory
  * Not pretty but does the trick ¯\_(ツ)_/¯
+ * <p>
+ * Every entry carries the version of the write that produced it. Writes and
+ * deletes only take effect if they are newer than the stored entry (last writer
+ * wins), deletes leave a tombstone behind.
+ * <p>
+ * The entries are kept by a {@link StorageEngine}, on the heap unless another engine
+ * is chosen with {@link #use(StorageEngine)} at startup.
+ * <p>
+ * If a {@link WriteAheadLog} is attached with {@link #recover(WriteAheadLog, Snapshots)},
+ * every applied change is appended to it, and {@link #whenDurable(Runnable)} tells
+ * when the changes made so far survive a crash.
  */
 public class Memory {
 	
 	static Logger logger = Logger.getLogger(Memory.class.getName());
 
-	private static ConcurrentHashMap<String, String> memory = new ConcurrentHashMap<String, String>();
+	private static volatile StorageEngine memory = new HashMapEngine();
 	
-	public static void put(String key, String value) {
-		memory.put(key, value);
-		logger.info(key + " -> " + value);
+	private static List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	
+	private static volatile WriteAheadLog log;
+	
+	/**
+	 * Replaces the storage engine, must be called before anything is stored
+	 */
+	public static void use(StorageEngine engine) {
+		memory = engine;
+		logger.info("Using storage engine " + engine.getClass().getSimpleName() + " with " + engine.size()
+				+ " entries");
+	}
+	
+	/**
+	 * Restores the entries from the newest snapshot and the log tail after it, and
+	 * appends all further changes to the log
+	 */
+	public static void recover(WriteAheadLog wal, Snapshots snapshots) throws IOException {
+		long lsn = snapshots.load(Memory::recovered);
+		wal.open(lsn, Memory::recovered);
+		log = wal;
+	}
+	
+	/**
+	 * Applies a write or delete received in bulk (e.g. from a snapshot of a peer) if
+	 * it is newer than the stored entry, without logging each entry.
+	 * 
+	 * @return true if the record was applied
+	 */
+	public static boolean restore(KeyValuePair record) {
+		boolean applied = apply(record);
+		if (applied) {
+			append(record.toBuilder().setFormat(ValueCodec.FORMAT).build());
+		}
+		return applied;
+	}
+	
+	/**
+	 * Runs the callback once all changes made so far are durable, right away if
+	 * there is no log
+	 */
+	public static void whenDurable(Runnable callback) {
+		WriteAheadLog wal = log;
+		if (wal == null) {
+			callback.run();
+		} else {
+			wal.whenDurable(callback);
+		}
+	}
+	
+	/**
+	 * Stores the value if its version is newer than the stored one.
+	 * 
+	 * @return true if the value was stored
+	 */
+	public static boolean put(String key, ByteString value, long version) {
+		boolean applied = apply(key, VersionedValue.of(value, version));
+		if (applied) {
+			append(KeyValuePair.newBuilder().setKey(key).setValue(value).setVersion(version)
+					.setFormat(ValueCodec.FORMAT).build());
+		}
+		logger.info(key + " -> " + value.size() + " bytes@" + version + (applied ? "" : " (stale, ignored)"));
+		return applied;
+	}
+	
+	/**
+	 * Value of the key, null if it is unknown or deleted.
+	 */
+	public static ByteString get(String key) {
+		VersionedValue entry = read(key);
+		return entry == null || entry.isDeleted() ? null : entry.getValue();
+	}
+	
+	/**
+	 * Value or tombstone of the key, null if it is unknown.
+	 */
+	public static VersionedValue getVersioned(String key) {
+		return read(key);
+	}
+	
+	private static VersionedValue read(String key) {
+		long start = System.nanoTime();
+		VersionedValue entry = memory.get(key);
+		Metrics.recordSince("store.read", start);
+		return entry;
+	}
+	
+	/**
+	 * Replaces the value with a tombstone if the delete is newer than the stored
+	 * entry.
+	 * 
+	 * @return true if the delete was applied
+	 */
+	public static boolean delete(String key, long version) {
+		boolean applied = apply(key, VersionedValue.tombstone(version));
+		if (applied) {
+			append(KeyValuePair.newBuilder().setKey(key).setVersion(version).setDeleted(true).build());
+		}
+		return applied;
+	}
+	
+	private static void append(KeyValuePair record) {
+		WriteAheadLog wal = log;
+		if (wal != null) {
+			long start = System.nanoTime();
+			try {
+				wal.append(record);
+				Metrics.recordSince("store.log", start);
+			} catch (IOException e) {
+				// the change is in memory but wouldn't survive a restart, so fail the request
+				throw new IllegalStateException("Cannot append to write-ahead log", e);
+			}
+		}
+	}
+	
+	/**
+	 * Calls the action for every entry, tombstones included. Weakly consistent:
+	 * concurrent changes may or may not be seen.
+	 */
+	public static void forEach(BiConsumer<String, VersionedValue> action) {
+		memory.forEach(action);
+	}
+	
+	/**
+	 * Number of keys, tombstones included
+	 */
+	public static long size() {
+		return memory.size();
+	}
+	
+	/**
+	 * Registers a listener that is told about every applied change
+	 */
+	public static void addListener(ChangeListener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Applies a record of a snapshot or the log, migrating the value of a record
+	 * written before values were encoded
+	 */
+	private static void recovered(KeyValuePair record) {
+		if (record.getFormat() < ValueCodec.FORMAT && !record.getDeleted()) {
+			ByteString value = ValueCodec.migrate(record.getValue());
+			if (value != record.getValue()) {
+				record = record.toBuilder().setValue(value).setFormat(ValueCodec.FORMAT).build();
+			}
+		}
+		apply(record);
+	}
+	
+	private static boolean apply(KeyValuePair record) {
+		if (record.getDeleted()) {
+			return apply(record.getKey(), VersionedValue.tombstone(record.getVersion()));
+		}
+		return apply(record.getKey(), VersionedValue.of(record.getValue(), record.getVersion()));
 	}
 	
-	public static String get(String key) {
-		return memory.get(key);
+	private static boolean apply(String key, VersionedValue update) {
+		long start = System.nanoTime();
+		boolean applied = memory.putIfNewer(key, update, (k, before, after) -> {
+			for (ChangeListener listener : listeners) {
+				listener.changed(k, before, after);
+			}
+		});
+		Metrics.recordSince("store.write", start);
+		return applied;
 	}
 	
-	public static String delete(String key) {
-		return memory.remove(key);
+	/**
+	 * Listener for changes of the stored entries
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called after the entry of the key changed from {@code before} (null if the
+		 * key was unknown) to {@code after}
+		 */
+		void changed(String key, VersionedValue before, VersionedValue after);
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,81 @@
+package de.tub.ise;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Merkle tree over the key space of the store, used by {@link AntiEntropy} to find
+ * the key ranges in which two replicas differ.
+ * <p>
+ * Keys are hashed into {@code 2^depth} ranges (leaves). The hash of a leaf is the
+ * sum of the hashes of its entries, so it is updated incrementally on every change
+ * instead of being rebuilt. Inner nodes are derived from their children when they
+ * are asked for. Nodes are numbered like a binary heap: the root is 1, the children
+ * of node i are 2i and 2i+1, and the leaves are {@code 2^depth .. 2^(depth+1)-1}.
+ */
+public class MerkleTree {
+
+    public static final int ROOT = 1;
+
+    private final int depth;
+    private final AtomicLongArray leaves;
+
+    public MerkleTree(int depth) {
+        if (depth < 1 || depth > 20) {
+            throw new IllegalArgumentException("Unsupported tree depth " + depth);
+        }
+        this.depth = depth;
+        this.leaves = new AtomicLongArray(1 << depth);
+    }
+
+    /**
+     * Accounts for a change of the entry of a key, either value may be null.
+     */
+    public void update(String key, VersionedValue before, VersionedValue after) {
+        int leaf = leafOf(key);
+        long delta = entryHash(key, after) - entryHash(key, before);
+        if (delta != 0) {
+            leaves.addAndGet(leaf - firstLeaf(), delta);
+        }
+    }
+
+    /**
+     * Hash of a tree node (heap numbering).
+     */
+    public long hash(int node) {
+        if (node < ROOT || node > lastLeaf()) {
+            throw new IllegalArgumentException("No tree node " + node);
+        }
+        if (isLeaf(node)) {
+            return leaves.get(node - firstLeaf());
+        }
+        return Hashing.mix(hash(2 * node) * 31 + hash(2 * node + 1));
+    }
+
+    /**
+     * Leaf (heap numbering) that holds the key.
+     */
+    public int leafOf(String key) {
+        return firstLeaf() + (int) (Hashing.hash(key) >>> (64 - depth));
+    }
+
+    public boolean isLeaf(int node) {
+        return node >= firstLeaf();
+    }
+
+    public int firstLeaf() {
+        return 1 << depth;
+    }
+
+    public int lastLeaf() {
+        return (1 << (depth + 1)) - 1;
+    }
+
+    private static long entryHash(String key, VersionedValue entry) {
+        if (entry == null) {
+            return 0;
+        }
+        long h = Hashing.hash(key) * 31 + Hashing.mix(entry.getVersion());
+        h = h * 31 + (entry.isDeleted() ? 1 : Hashing.fnv1a(entry.getValue()));
+        return Hashing.mix(h);
+    }
+}
@@ -0,0 +1,118 @@
+package de.tub.ise;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Latency histograms and counters of this node, by name.
+ * <p>
+ * Names are dotted paths: {@code rpc.<method>} for served calls (see
+ * {@link MetricsInterceptor}), {@code peer.<node>.rtt} for replica round trips,
+ * {@code quorum.<operation>} for the wait until a quorum is decided and
+ * {@code store.read}/{@code store.write}/{@code store.log} for the storage engine
+ * and the write-ahead log. Latencies are
+ * recorded in nanoseconds. The stats RPC returns all of them, and a text summary is
+ * logged periodically.
+ */
+public class Metrics {
+
+    static Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stats");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Histogram of the given name, created on first use
+     */
+    public static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Counter of the given name, created on first use
+     */
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, n -> new AtomicLong());
+    }
+
+    /**
+     * Reports a value kept elsewhere (e.g. the hits of a cache) as counter
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Records the time since {@code startNanos} in the histogram of the given name
+     */
+    public static void recordSince(String name, long startNanos) {
+        histogram(name).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Logs a summary of all histograms and counters every {@code intervalSeconds}, not
+     * at all if 0
+     */
+    public static void start(String node, long intervalSeconds) {
+        if (intervalSeconds > 0) {
+            reporter.scheduleWithFixedDelay(() -> logger.info(format(report(node))), intervalSeconds,
+                    intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Current state of all histograms and counters, sorted by name
+     */
+    public static StatsReply report(String node) {
+        StatsReply.Builder reply = StatsReply.newBuilder().setNode(node);
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+            reply.addHistograms(HistogramStats.newBuilder().setName(entry.getKey())
+                    .setCount(snapshot.getCount()).setMean(snapshot.getMean())
+                    .setP50(snapshot.percentile(50)).setP90(snapshot.percentile(90))
+                    .setP99(snapshot.percentile(99)).setP999(snapshot.percentile(99.9))
+                    .setMax(snapshot.getMax()));
+        }
+        Map<String, LongSupplier> values = new TreeMap<>(gauges);
+        counters.forEach((name, counter) -> values.put(name, counter::get));
+        for (Map.Entry<String, LongSupplier> entry : values.entrySet()) {
+            reply.addCounters(CounterValue.newBuilder().setName(entry.getKey())
+                    .setValue(entry.getValue().getAsLong()));
+        }
+        return reply.build();
+    }
+
+    /**
+     * Text table of a stats reply, latencies in microseconds
+     */
+    public static String format(StatsReply stats) {
+        StringBuilder text = new StringBuilder("Stats of " + stats.getNode() + " (latencies in us)\n");
+        text.append(String.format("%-32s %10s %10s %10s %10s %10s %10s %10s%n", "histogram", "count", "mean",
+                "p50", "p90", "p99", "p99.9", "max"));
+        for (HistogramStats h : stats.getHistogramsList()) {
+            text.append(String.format("%-32s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", h.getName(),
+                    h.getCount(), h.getMean() / 1000, h.getP50() / 1000.0, h.getP90() / 1000.0,
+                    h.getP99() / 1000.0, h.getP999() / 1000.0, h.getMax() / 1000.0));
+        }
+        for (CounterValue c : stats.getCountersList()) {
+            text.append(String.format("%-32s %10d%n", c.getName(), c.getValue()));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,58 @@
+package de.tub.ise;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Times every served call from its start until the response is closed, in the
+ * {@code rpc.<method>} histogram of {@link Metrics}. Also counts the calls in flight
+ * ({@code rpc.<method>.inflight}), the calls that failed ({@code rpc.<method>.errors})
+ * and the calls cancelled by the caller ({@code rpc.<method>.cancelled}).
+ * <p>
+ * Since the quorum calls answer from replica callbacks, the time covers the whole
+ * quorum path and not only the handler method.
+ */
+public class MetricsInterceptor implements ServerInterceptor {
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String method = call.getMethodDescriptor().getFullMethodName();
+        String name = "rpc." + method.substring(method.lastIndexOf('/') + 1);
+        long start = System.nanoTime();
+        AtomicLong inflight = Metrics.counter(name + ".inflight");
+        AtomicBoolean finished = new AtomicBoolean();
+        inflight.incrementAndGet();
+        ServerCall<ReqT, RespT> timed = new SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (finished.compareAndSet(false, true)) {
+                    inflight.decrementAndGet();
+                    Metrics.recordSince(name, start);
+                    if (!status.isOk()) {
+                        Metrics.counter(name + ".errors").incrementAndGet();
+                    }
+                }
+                super.close(status, trailers);
+            }
+        };
+        return new SimpleForwardingServerCallListener<ReqT>(next.startCall(timed, headers)) {
+            @Override
+            public void onCancel() {
+                if (finished.compareAndSet(false, true)) {
+                    inflight.decrementAndGet();
+                    Metrics.counter(name + ".cancelled").incrementAndGet();
+                }
+                super.onCancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,377 @@
+package de.tub.ise;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+import com.google.protobuf.ByteString;
+import org.apache.log4j.Logger;
+
+/**
+ * Storage engine that keeps keys and values as raw bytes outside the Java heap.
+ * <p>
+ * The keys are spread over segments, each with its own lock, an open-addressing
+ * hash index (linear probing, slots of hash and entry address) and its own slab
+ * allocator, all in direct memory. An entry (size class, flags, key length, value
+ * length, version, key, value) lives in a chunk of the smallest size class that
+ * fits it; size classes are powers of two from 32 bytes up to the slab size, and
+ * every slab is carved into chunks of one class. Free chunks are linked through
+ * their first bytes, so the heap only holds one small object per slab and segment,
+ * whatever the number of keys. Entries larger than a slab get a buffer of their
+ * own.
+ * <p>
+ * Keys are never removed (deletes are tombstones, which are kept regardless of the
+ * tombstone grace period), so the index needs no deletion handling; it doubles
+ * when it is three quarters full. The total size of slabs and indexes is bounded
+ * by {@code capacityBytes}, writes fail once it is reached.
+ */
+public class OffHeapEngine implements StorageEngine {
+
+    static Logger logger = Logger.getLogger(OffHeapEngine.class.getName());
+
+    private static final int SEGMENTS = 64;
+    private static final int SLAB_BYTES = 1 << 16;
+    private static final int MIN_CHUNK_BYTES = 32;
+    // 32 B to 64 KB
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(SLAB_BYTES)
+            - Integer.numberOfTrailingZeros(MIN_CHUNK_BYTES) + 1;
+    private static final byte HUGE = -1;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int SLOT_BYTES = 16;
+    // size class, flags, key length, value length, version
+    private static final int HEADER_BYTES = 1 + 1 + 4 + 4 + 8;
+    private static final byte DELETED = 1;
+    // entries copied to the heap per lock hold in forEach, on average
+    private static final int SCAN_BATCH = 256;
+
+    private final long capacityBytes;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * @param capacityBytes maximum size of the direct memory used
+     */
+    public OffHeapEngine(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public VersionedValue get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = Hashing.hash(keyBytes);
+        Segment segment = segmentOf(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            long address = segment.find(hash, keyBytes);
+            return address == 0 ? null : segment.read(address);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean putIfNewer(String key, VersionedValue update, Memory.ChangeListener changed) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteString value = update.isDeleted() ? ByteString.EMPTY : update.getValue();
+        long hash = Hashing.hash(keyBytes);
+        Segment segment = segmentOf(hash);
+        VersionedValue before;
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.slotOf(hash, keyBytes);
+            long address = segment.table.getLong(slot * SLOT_BYTES + 8);
+            before = address == 0 ? null : segment.read(address);
+            if (!update.newerThan(before)) {
+                return false;
+            }
+            long written = segment.write(keyBytes, value, update.getVersion(), update.isDeleted());
+            segment.table.putLong(slot * SLOT_BYTES, hash);
+            segment.table.putLong(slot * SLOT_BYTES + 8, written);
+            if (address == 0) {
+                segment.count++;
+                segment.growIfFull();
+            } else {
+                segment.free(address);
+            }
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        changed.changed(key, before, update);
+        return true;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, VersionedValue> action) {
+        List<String> keys = new ArrayList<>();
+        List<VersionedValue> values = new ArrayList<>();
+        for (Segment segment : segments) {
+            // Keys are visited in batches of home slots in the initial index size.
+            // Doubling the index keeps these groups together, so a resize between
+            // two batches neither skips nor repeats keys.
+            int from = 0;
+            while (from < INITIAL_SLOTS) {
+                int to;
+                long stamp = segment.lock.readLock();
+                try {
+                    int step = Math.max(1, (int) ((long) SCAN_BATCH * INITIAL_SLOTS / Math.max(1, segment.count)));
+                    to = Math.min(INITIAL_SLOTS, from + step);
+                    segment.collect(from, to, keys, values);
+                } finally {
+                    segment.lock.unlockRead(stamp);
+                }
+                for (int i = 0; i < keys.size(); i++) {
+                    action.accept(keys.get(i), values.get(i));
+                }
+                keys.clear();
+                values.clear();
+                from = to;
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            size += segment.count;
+            segment.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        // the direct buffers are released with the engine
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> 58) & (SEGMENTS - 1)];
+    }
+
+    private ByteBuffer allocate(int bytes) {
+        if (allocatedBytes.addAndGet(bytes) > capacityBytes) {
+            allocatedBytes.addAndGet(-bytes);
+            throw new IllegalStateException("Off-heap store is full (" + (capacityBytes >> 20) + " MB)");
+        }
+        return ByteBuffer.allocateDirect(bytes);
+    }
+
+    /**
+     * Part of the keys with its own index, slabs and lock. Addresses of entries are
+     * (slab number + 1) << 32 | offset, so 0 means empty.
+     */
+    private class Segment {
+        private final StampedLock lock = new StampedLock();
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        // slab numbers of released huge entries, reused first
+        private final List<Integer> unusedSlabs = new ArrayList<>();
+        // first free chunk per size class, linked through the chunks
+        private final long[] freeChunks = new long[SIZE_CLASSES];
+        private ByteBuffer table = allocate(INITIAL_SLOTS * SLOT_BYTES);
+        private int count;
+
+        /**
+         * Address of the entry of the key, 0 if there is none
+         */
+        long find(long hash, byte[] key) {
+            return table.getLong(slotOf(hash, key) * SLOT_BYTES + 8);
+        }
+
+        /**
+         * Slot holding the key, or the empty slot where it belongs
+         */
+        int slotOf(long hash, byte[] key) {
+            int mask = table.capacity() / SLOT_BYTES - 1;
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                long address = table.getLong(slot * SLOT_BYTES + 8);
+                if (address == 0 || (table.getLong(slot * SLOT_BYTES) == hash && keyEquals(address, key))) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Copies the entries whose home slot modulo the initial index size is in
+         * [from, to)
+         */
+        void collect(int from, int to, List<String> keys, List<VersionedValue> values) {
+            int slots = table.capacity() / SLOT_BYTES;
+            int mask = slots - 1;
+            for (int home = 0; home < slots; home += INITIAL_SLOTS) {
+                for (int residue = from; residue < to; residue++) {
+                    // without deletions, the keys of a home slot lie between it and
+                    // the next empty slot
+                    for (int slot = home + residue; ; slot = (slot + 1) & mask) {
+                        long address = table.getLong(slot * SLOT_BYTES + 8);
+                        if (address == 0) {
+                            break;
+                        }
+                        if (((int) table.getLong(slot * SLOT_BYTES) & mask) == home + residue) {
+                            keys.add(readKey(address));
+                            values.add(read(address));
+                        }
+                    }
+                }
+            }
+        }
+
+        void growIfFull() {
+            int slots = table.capacity() / SLOT_BYTES;
+            if (count * 4 < slots * 3) {
+                return;
+            }
+            ByteBuffer old = table;
+            table = allocate(slots * 2 * SLOT_BYTES);
+            int mask = slots * 2 - 1;
+            for (int i = 0; i < slots; i++) {
+                long address = old.getLong(i * SLOT_BYTES + 8);
+                if (address != 0) {
+                    long hash = old.getLong(i * SLOT_BYTES);
+                    int slot = (int) hash & mask;
+                    while (table.getLong(slot * SLOT_BYTES + 8) != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table.putLong(slot * SLOT_BYTES, hash);
+                    table.putLong(slot * SLOT_BYTES + 8, address);
+                }
+            }
+            allocatedBytes.addAndGet(-old.capacity());
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            if (slab.getInt(offset + 2) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(offset + HEADER_BYTES + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String readKey(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            return new String(copy(slab, offset + HEADER_BYTES, slab.getInt(offset + 2)), StandardCharsets.UTF_8);
+        }
+
+        VersionedValue read(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            long version = slab.getLong(offset + 10);
+            if (slab.get(offset + 1) == DELETED) {
+                return VersionedValue.tombstone(version);
+            }
+            ByteBuffer value = slab.duplicate();
+            int start = offset + HEADER_BYTES + slab.getInt(offset + 2);
+            value.limit(start + slab.getInt(offset + 6)).position(start);
+            return VersionedValue.of(ByteString.copyFrom(value), version);
+        }
+
+        long write(byte[] key, ByteString value, long version, boolean deleted) {
+            int length = HEADER_BYTES + key.length + value.size();
+            long address = alloc(length);
+            ByteBuffer out = slabOf(address).duplicate();
+            out.position(offsetOf(address) + 1);
+            out.put(deleted ? DELETED : 0).putInt(key.length).putInt(value.size()).putLong(version).put(key);
+            value.copyTo(out);
+            return address;
+        }
+
+        private long alloc(int length) {
+            if (length > SLAB_BYTES) {
+                ByteBuffer huge = allocate(length);
+                huge.put(0, HUGE);
+                int number;
+                if (unusedSlabs.isEmpty()) {
+                    number = slabs.size();
+                    slabs.add(huge);
+                } else {
+                    number = unusedSlabs.remove(unusedSlabs.size() - 1);
+                    slabs.set(number, huge);
+                }
+                return address(number, 0);
+            }
+            int sizeClass = sizeClassOf(length);
+            if (freeChunks[sizeClass] == 0) {
+                carve(sizeClass);
+            }
+            long address = freeChunks[sizeClass];
+            ByteBuffer slab = slabOf(address);
+            freeChunks[sizeClass] = slab.getLong(offsetOf(address));
+            slab.put(offsetOf(address), (byte) sizeClass);
+            return address;
+        }
+
+        void free(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            byte sizeClass = slab.get(offset);
+            if (sizeClass == HUGE) {
+                int number = (int) (address >>> 32) - 1;
+                slabs.set(number, null);
+                unusedSlabs.add(number);
+                allocatedBytes.addAndGet(-slab.capacity());
+                return;
+            }
+            slab.putLong(offset, freeChunks[sizeClass]);
+            freeChunks[sizeClass] = address;
+        }
+
+        // splits a new slab into free chunks of the size class
+        private void carve(int sizeClass) {
+            ByteBuffer slab = allocate(SLAB_BYTES);
+            int number;
+            if (unusedSlabs.isEmpty()) {
+                number = slabs.size();
+                slabs.add(slab);
+            } else {
+                number = unusedSlabs.remove(unusedSlabs.size() - 1);
+                slabs.set(number, slab);
+            }
+            int chunk = MIN_CHUNK_BYTES << sizeClass;
+            long next = 0;
+            for (int offset = SLAB_BYTES - chunk; offset >= 0; offset -= chunk) {
+                slab.putLong(offset, next);
+                next = address(number, offset);
+            }
+            freeChunks[sizeClass] = next;
+        }
+
+        private ByteBuffer slabOf(long address) {
+            return slabs.get((int) (address >>> 32) - 1);
+        }
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) (slab + 1) << 32) | offset;
+    }
+
+    private static int sizeClassOf(int length) {
+        int chunk = Math.max(MIN_CHUNK_BYTES, Integer.highestOneBit(length - 1) << 1);
+        return Integer.numberOfTrailingZeros(chunk) - Integer.numberOfTrailingZeros(MIN_CHUNK_BYTES);
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+}
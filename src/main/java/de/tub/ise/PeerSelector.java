@@ -0,0 +1,237 @@
+package de.tub.ise;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Ranks peers by expected response time, so reads go to the fastest replicas.
+ * <p>
+ * Every replica call is tracked: the answer time updates an exponentially
+ * weighted moving average (EWMA) per peer, and the calls still waiting for an
+ * answer are counted. The score of a peer is its average times one plus its
+ * outstanding calls, so a peer that is fast but already busy loses against a
+ * slightly slower idle one. A failed call counts as a very slow answer. The average
+ * of a peer that hasn't answered recently halves every second, so a peer that was
+ * slow once is tried again soon instead of being avoided forever.
+ * <p>
+ * The answer times of the last few seconds also give every peer a hedge delay (a
+ * high percentile, after which a spare replica is asked as well) and a deadline for
+ * its calls (the 99th percentile times a factor), so a stalled peer costs a bounded
+ * wait instead of the quorum timeout. A call that runs into its deadline counts as
+ * an answer after the deadline, so the deadline of a peer that became slower grows
+ * with it.
+ */
+public class PeerSelector {
+
+    // weight of the newest sample in the average
+    private static final double ALPHA = 0.2;
+    private static final long HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // minimum latency a failed call counts as
+    private static final long FAILURE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // answer times are summarized per window, if there are enough of them; a window
+    // still short of samples after twice its length is dropped
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int MIN_SAMPLES = 20;
+    // a peer without answers for this long gets no deadline until it answers again,
+    // so a peer that became slower for good can be measured again
+    private static final long FORGET_NANOS = 6 * WINDOW_NANOS;
+
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final LongSupplier ticker;
+    private final double hedgePercentile;
+    private final double deadlineFactor;
+    private final long minDeadlineNanos;
+    // the quorum timeout, no call gets a longer deadline
+    private final long maxDeadlineNanos;
+
+    /**
+     * @param names            all peers that will be tracked
+     * @param hedgePercentile  percentile of a peer's answer times after which a call
+     *                         is hedged, 0 disables hedging
+     * @param deadlineFactor   deadline of a call as multiple of the peer's 99th
+     *                         percentile, 0 disables deadlines
+     * @param minDeadlineNanos lower bound of the deadlines
+     * @param maxDeadlineNanos deadline of calls to peers without a deadline of their
+     *                         own, the quorum timeout
+     */
+    public PeerSelector(Collection<String> names, double hedgePercentile, double deadlineFactor,
+                        long minDeadlineNanos, long maxDeadlineNanos) {
+        this(names, hedgePercentile, deadlineFactor, minDeadlineNanos, maxDeadlineNanos, System::nanoTime);
+    }
+
+    /**
+     * @param ticker source of {@link System#nanoTime()}, replaced in tests
+     */
+    PeerSelector(Collection<String> names, double hedgePercentile, double deadlineFactor, long minDeadlineNanos,
+                 long maxDeadlineNanos, LongSupplier ticker) {
+        this.ticker = ticker;
+        this.hedgePercentile = hedgePercentile;
+        this.deadlineFactor = deadlineFactor;
+        this.minDeadlineNanos = minDeadlineNanos;
+        this.maxDeadlineNanos = maxDeadlineNanos;
+        for (String name : names) {
+            Peer peer = new Peer();
+            peers.put(name, peer);
+            Metrics.gauge("peer." + name + ".ewma", () -> (long) peer.average);
+            Metrics.gauge("peer." + name + ".outstanding", peer.outstanding::get);
+        }
+    }
+
+    /**
+     * The given peers, best first. Peers with equal scores keep their order.
+     */
+    public List<String> rank(List<String> candidates) {
+        long now = ticker.getAsLong();
+        Map<String, Double> scores = new HashMap<>();
+        for (String candidate : candidates) {
+            scores.put(candidate, peers.get(candidate).score(now));
+        }
+        List<String> ranked = new ArrayList<>(candidates);
+        ranked.sort(Comparator.comparing(scores::get));
+        return ranked;
+    }
+
+    /**
+     * Time after which an unanswered call to the peer should be hedged, -1 if
+     * hedging is disabled or the peer's answer times are not known yet
+     */
+    public long hedgeDelayNanos(String name) {
+        return hedgePercentile > 0 ? peers.get(name).hedgeNanos : -1;
+    }
+
+    /**
+     * Deadline for a call to the peer
+     */
+    public long deadlineNanos(String name) {
+        Peer peer = peers.get(name);
+        long p99 = peer.p99Nanos;
+        if (deadlineFactor <= 0 || p99 < 0 || ticker.getAsLong() - peer.lastAnswer > FORGET_NANOS) {
+            return maxDeadlineNanos;
+        }
+        return Math.min(maxDeadlineNanos, Math.max(minDeadlineNanos, (long) (p99 * deadlineFactor)));
+    }
+
+    /**
+     * Counts a call to the peer as outstanding until the returned observer, which
+     * passes everything on to {@code observer}, receives its answer or error. A
+     * cancelled call is not counted as a failure of the peer.
+     */
+    public <T> StreamObserver<T> track(String name, StreamObserver<T> observer) {
+        Peer peer = peers.get(name);
+        long start = ticker.getAsLong();
+        peer.outstanding.incrementAndGet();
+        return new StreamObserver<T>() {
+            private boolean answered;
+
+            @Override
+            public void onNext(T value) {
+                if (!answered) {
+                    answered = true;
+                    peer.answered(ticker.getAsLong() - start);
+                }
+                observer.onNext(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (!answered) {
+                    answered = true;
+                    Status.Code code = Status.fromThrowable(t).getCode();
+                    if (code == Status.Code.CANCELLED) {
+                        // cancelled by this node, says nothing about the peer
+                        peer.outstanding.decrementAndGet();
+                    } else {
+                        peer.failed(ticker.getAsLong() - start, code == Status.Code.DEADLINE_EXCEEDED);
+                    }
+                }
+                observer.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (!answered) {
+                    answered = true;
+                    peer.answered(ticker.getAsLong() - start);
+                }
+                observer.onCompleted();
+            }
+        };
+    }
+
+    /**
+     * Answer times of one peer
+     */
+    private class Peer {
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // nanoseconds, 0 until the first answer
+        private volatile double average;
+        private volatile long lastSample;
+        private volatile long lastAnswer = ticker.getAsLong();
+        // answer times of successful calls and of calls past their deadline
+        private LatencyHistogram window = new LatencyHistogram();
+        private long windowStart = ticker.getAsLong();
+        // percentiles of the last complete window, -1 until there is one
+        private volatile long hedgeNanos = -1;
+        private volatile long p99Nanos = -1;
+
+        synchronized void answered(long nanos) {
+            outstanding.decrementAndGet();
+            long now = ticker.getAsLong();
+            sample(nanos, now);
+            lastAnswer = now;
+            record(nanos, now);
+        }
+
+        /**
+         * @param deadline true if the call ran into its deadline, the peer would have
+         *                 answered later (if at all)
+         */
+        synchronized void failed(long nanos, boolean deadline) {
+            outstanding.decrementAndGet();
+            long now = ticker.getAsLong();
+            long penalty = Math.max(nanos, Math.max(FAILURE_NANOS, 4 * (long) average));
+            sample(Math.min(penalty, maxDeadlineNanos), now);
+            if (deadline) {
+                record(nanos, now);
+            }
+        }
+
+        private void record(long nanos, long now) {
+            if (now - windowStart >= 2 * WINDOW_NANOS) {
+                // too few samples for too long, they are stale by now
+                window = new LatencyHistogram();
+                windowStart = now;
+            }
+            window.record(nanos);
+            if (now - windowStart >= WINDOW_NANOS) {
+                LatencyHistogram.Snapshot snapshot = window.snapshot();
+                if (snapshot.getCount() >= MIN_SAMPLES) {
+                    hedgeNanos = snapshot.percentile(hedgePercentile);
+                    p99Nanos = snapshot.percentile(99);
+                    window = new LatencyHistogram();
+                    windowStart = now;
+                }
+            }
+        }
+
+        private void sample(long nanos, long now) {
+            average = average == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * average;
+            lastSample = now;
+        }
+
+        double score(long now) {
+            double decayed = average * Math.pow(0.5, (double) (now - lastSample) / HALF_LIFE_NANOS);
+            return decayed * (1 + outstanding.get());
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package de.tub.ise;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
 
+import com.google.protobuf.ByteString;
 import de.tub.ise.KeyValueStoreGrpc.KeyValueStoreStub;
 import de.tub.ise.Response;
 import io.grpc.stub.StreamObserver;
@@ -19,51 +28,157 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
     private final int qreadsize;
     private final HashMap<String, String> otherNodes;
     private final HashMap<String, KeyValueStoreStub> otherServer;
+    private final HashMap<String, ManagedChannel> otherChannels;
+    private final String thisNode;
+    private final TokenRing ring;
+    private final AntiEntropy antiEntropy;
+    private final HintedHandoff hintedHandoff;
+    private final SnapshotTransfer snapshotTransfer;
+    // null if quorum reads are never served from a cache
+    private final ReadCache readCache;
+    // null if writes are replicated with unary calls
+    private final HashMap<String, ReplicationStream> replicationStreams;
+    private final HybridClock clock = new HybridClock();
+    private final RateLimiter readRepairLimiter;
+    // ranks the peers by response time, reads go to the fastest ones
+    private final PeerSelector selector;
+    private final boolean digestReads;
+    private final int compressThreshold;
+    // upper bound for a decompressed value, it must fit into a message to the client
+    private final int maxValueBytes;
+    private final long quorumTimeoutNanos;
     static Logger logger = Logger.getLogger(QuorumImpl.class.getName());
 
+    // Nobody waits for read repairs, failures are only logged
+    private static final StreamObserver<Response> REPAIR_OBSERVER = new StreamObserver<Response>() {
+        @Override
+        public void onNext(Response response) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.debug("Read repair failed: " + t.getMessage());
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    };
+
     /**
      * Constructor of Quorum Service
      */
     QuorumImpl() {
-        this.qwritesize = KVNodeMain.config.getWriteQuorum();
-        this.qreadsize = KVNodeMain.config.getReadQuorum();
-        this.otherNodes = KVNodeMain.config.getOtherNodes(KVNodeMain.config.thisNode());
+        this(KVNodeMain.config, node -> {
+            String hostPort = KVNodeMain.config.getAllHosts().get(node);
+            logger.info(hostPort);
+            return ChannelPool.of(node, hostPort, KVNodeMain.config);
+        });
+    }
+
+    /**
+     * Quorum service of the node {@code config.thisNode()}, reaching the other nodes
+     * over the channels made by {@code channelFactory} (e.g. in-process channels for
+     * benchmarks)
+     */
+    QuorumImpl(Configuration config, Function<String, ManagedChannel> channelFactory) {
+        this.qwritesize = config.getWriteQuorum();
+        this.qreadsize = config.getReadQuorum();
+        // a rate of 0 disables read repair
+        this.readRepairLimiter = config.getReadRepairRate() > 0 ? new RateLimiter(config.getReadRepairRate(),
+                (int) Math.max(1, config.getReadRepairRate())) : null;
+        this.thisNode = config.thisNode();
+        this.ring = new TokenRing(config.getAllHosts().keySet(), config.getVnodes(),
+                config.getReplicationFactor());
+        this.otherNodes = config.getOtherNodes(thisNode);
+        this.quorumTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getQuorumTimeout());
+        this.selector = new PeerSelector(otherNodes.keySet(), config.getHedgePercentile(), config.getDeadlineFactor(),
+                TimeUnit.MILLISECONDS.toNanos(config.getDeadlineMin()), quorumTimeoutNanos);
+        this.digestReads = config.useDigestReads();
+        this.compressThreshold = config.getCompressThreshold();
+        this.maxValueBytes = config.getMaxMessageBytes();
         this.otherServer = new HashMap<>();
-        for (HashMap.Entry<String, String> entry : otherNodes.entrySet()) {
-            String node = entry.getKey();
-            String host = entry.getValue().split(":")[0];
-            int port = Integer.parseInt(entry.getValue().split(":")[1]);
-            logger.info(host + ":" + port);
+        this.otherChannels = new HashMap<>();
+        for (String node : otherNodes.keySet()) {
             //Create the async stubs of the other nodes
-            otherServer.put(node, KeyValueStoreGrpc.newStub(ManagedChannelBuilder.forAddress(host, port)
-                    .usePlaintext().build()));
+            ManagedChannel channel = channelFactory.apply(node);
+            otherChannels.put(node, channel);
+            otherServer.put(node, KeyValueStoreGrpc.newStub(channel));
+        }
+        this.antiEntropy = new AntiEntropy(thisNode, otherChannels, ring, clock,
+                config.getAntiEntropyInterval(), config.getAntiEntropyRate());
+        antiEntropy.start();
+        String hintDir = config.getHintDir();
+        this.hintedHandoff = new HintedHandoff(otherChannels, config.getHintsMax(),
+                hintDir.isEmpty() ? null : new File(hintDir, thisNode), config.getHintReplayRate(),
+                config.getQuorumTimeout());
+        hintedHandoff.start();
+        this.readCache = config.getReadCacheLease() > 0 && qreadsize > 1
+                ? new ReadCache(config.getReadCacheLease(), config.getReadCacheSize()) : null;
+        this.snapshotTransfer = new SnapshotTransfer(thisNode, otherChannels, ring, clock);
+        if (config.bootstrap()) {
+            snapshotTransfer.start();
+        }
+        if (config.useReplicationStream()) {
+            this.replicationStreams = new HashMap<>();
+            for (HashMap.Entry<String, KeyValueStoreStub> entry : otherServer.entrySet()) {
+                replicationStreams.put(entry.getKey(), new ReplicationStream(thisNode, entry.getKey(),
+                        entry.getValue(), config.getCoalesceMicros(), quorumTimeoutNanos));
+            }
+        } else {
+            this.replicationStreams = null;
+        }
+    }
+
+    /**
+     * Stops the background work of this node: anti-entropy, hint replay, snapshot
+     * transfers and the replication streams. Requests in flight are not waited for.
+     */
+    void shutdown() {
+        antiEntropy.stop();
+        hintedHandoff.stop();
+        snapshotTransfer.stop();
+        if (replicationStreams != null) {
+            for (ReplicationStream stream : replicationStreams.values()) {
+                stream.close();
+            }
         }
     }
 
     /**
      * Implementation of put method specified in the .proto file. Handles write
      * requests from the client, produces response with success boolean and key
-     * (optional)
+     * (optional). The response is sent from the replica callbacks once the write
+     * quorum is decided, so no server thread waits for the other nodes.
      */
     @Override
     public void put(de.tub.ise.KeyValuePair request,
                     io.grpc.stub.StreamObserver<de.tub.ise.Response> responseObserver) {
-        String key = request.getKey();
-        String value = request.getValue();
-        Response response;
+        final String key = request.getKey();
 
         logger.debug("Received put request with key " + key);
-
-        if (replicateData(key, value)) {
-            response = Response.newBuilder().setSuccess(true).setKey(key).build();
-            logger.debug("Telling the client that we replicated");
-        } else {
-            response = Response.newBuilder().setSuccess(false).setKey(key).build();
-            logger.warn("Uh oh, replication not possible :(");
+        if (!ring.isReplica(thisNode, key)) {
+            forward(key, (stub, observer) -> stub.put(request, observer), responseObserver);
+            return;
         }
+        // stored and replicated in this form
+        ByteString value = ValueCodec.encode(request.getValue(), compressThreshold);
 
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+        // Replica calls must outlive the client call (its context is cancelled once
+        // the client is answered), so they are issued from a forked context
+        Context.current().fork().run(() ->
+            replicateData(key, value, success -> {
+                Response response;
+                if (success) {
+                    response = Response.newBuilder().setSuccess(true).setKey(key).build();
+                    logger.debug("Telling the client that we replicated");
+                } else {
+                    response = Response.newBuilder().setSuccess(false).setKey(key).build();
+                    logger.warn("Uh oh, replication not possible :(");
+                }
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            }));
     }
 
     /**
@@ -73,22 +188,26 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
      */
     @Override
     public void get(de.tub.ise.Key request, io.grpc.stub.StreamObserver<de.tub.ise.Response> responseObserver) {
-        String key = request.getKey();
-        Response response;
+        final String key = request.getKey();
 
         logger.debug("Received get request with key " + key);
-
-        KeyValuePair data = gatherdata(key);
-        if (data == null) {
-            response = Response.newBuilder().setSuccess(false).setKey(key).build();
-            logger.warn("Uh oh, couldn't get data :(");
-        } else {
-            response = Response.newBuilder().setSuccess(true).setKey(data.getKey()).setValue(data.getValue()).build();
-            logger.debug("Giving client the requested data");
+        if (!ring.isReplica(thisNode, key)) {
+            forward(key, (stub, observer) -> stub.get(request, observer), responseObserver);
+            return;
         }
 
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+        // Replica calls must outlive the client call (its context is cancelled once
+        // the client is answered), so they are issued from a forked context
+        Context.current().fork().run(() ->
+            gatherdata(key, data -> {
+                if (data == null) {
+                    logger.warn("Uh oh, couldn't get data :(");
+                } else {
+                    logger.debug("Giving client the requested data");
+                }
+                responseObserver.onNext(toResponse(key, data));
+                responseObserver.onCompleted();
+            }));
     }
 
     /**
@@ -98,20 +217,28 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
      */
     @Override
     public void delete(de.tub.ise.Key request, io.grpc.stub.StreamObserver<de.tub.ise.Response> responseObserver) {
-        String key = request.getKey();
+        final String key = request.getKey();
         logger.debug("Received delete request with key " + key);
-        Response response;
-        // If delete was replicated answer true, if failure answer fail
-        if (replicateDelete(key)) {
-            response = Response.newBuilder().setSuccess(true).setKey(key).build();
-            logger.debug("Telling the client that we deleted");
-        } else {
-            response = Response.newBuilder().setSuccess(false).setKey(key).build();
-            logger.warn("Uh oh, delete not possible :(");
+        if (!ring.isReplica(thisNode, key)) {
+            forward(key, (stub, observer) -> stub.delete(request, observer), responseObserver);
+            return;
         }
-
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+        // If delete was replicated answer true, if failure answer fail
+        // Replica calls must outlive the client call (its context is cancelled once
+        // the client is answered), so they are issued from a forked context
+        Context.current().fork().run(() ->
+            replicateDelete(key, success -> {
+                Response response;
+                if (success) {
+                    response = Response.newBuilder().setSuccess(true).setKey(key).build();
+                    logger.debug("Telling the client that we deleted");
+                } else {
+                    response = Response.newBuilder().setSuccess(false).setKey(key).build();
+                    logger.warn("Uh oh, delete not possible :(");
+                }
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            }));
     }
 
 
@@ -123,7 +250,7 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
     public void replicate(de.tub.ise.KeyValuePair request,
                           io.grpc.stub.StreamObserver<de.tub.ise.Response> responseObserver) {
         String key = request.getKey();
-        String value = request.getValue();
+        ByteString value = request.getValue();
         Response response;
 
         /** Asynchronously, writes and generates the answer of the replication request.
@@ -134,15 +261,20 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
         Context old = forked.attach();
         try {
             logger.debug("Received replicate request with key " + key);
-            Memory.put(key, value);
+            clock.update(request.getVersion());
+            // an older version than the stored one is simply superseded
+            Memory.put(key, value, request.getVersion());
             response = Response.newBuilder().setSuccess(true).setKey(key).build();
-            logger.debug("Telling the node that we replicated");
-            responseObserver.onNext(response);
+            // acknowledge only once the write is durable
+            Memory.whenDurable(() -> {
+                logger.debug("Telling the node that we replicated");
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            });
         } catch (Exception e) {
             responseObserver.onError(e);
         } finally {
             forked.detach(old);
-            responseObserver.onCompleted();
         }
     }
 
@@ -153,8 +285,6 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
     @Override
     public void getReplica(de.tub.ise.Key request, io.grpc.stub.StreamObserver<de.tub.ise.Response> responseObserver) {
         String key = request.getKey();
-        Response response;
-        String data = null;
         logger.debug("Received getReplica request with key" + key);
 
         /** Asynchronously, reads and generates the answer of the replication request.
@@ -164,15 +294,7 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
         Context forked = Context.current().fork();
         Context old = forked.attach();
         try {
-            data = Memory.get(key);
-            if (data == null) {
-                response = Response.newBuilder().setSuccess(false).setKey(key).build();
-                logger.warn("Uh oh, couldn't get data :(");
-            } else {
-                response = Response.newBuilder().setSuccess(true).setKey(key).setValue(data).build();
-                logger.debug("Giving node the requested replica data for key: " + key);
-            }
-            responseObserver.onNext(response);
+            responseObserver.onNext(replicaResponse(request));
         } catch (Exception e) {
             responseObserver.onError(e);
         } finally {
@@ -181,6 +303,32 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
         }
     }
 
+    /**
+     * Answer of this node to a getReplica request for the key, with the digest of the
+     * value instead of the value if the request asks for it
+     */
+    private Response replicaResponse(Key request) {
+        String key = request.getKey();
+        VersionedValue data = Memory.getVersioned(key);
+        if (data == null) {
+            logger.warn("Uh oh, couldn't get data :(");
+            return Response.newBuilder().setSuccess(false).setKey(key).build();
+        } else if (data.isDeleted()) {
+            // tell the coordinator which delete it has to compare with
+            logger.debug("Telling node that key " + key + " was deleted");
+            return Response.newBuilder().setSuccess(false).setKey(key).setVersion(data.getVersion())
+                    .setDeleted(true).build();
+        } else if (request.getDigest()) {
+            logger.debug("Giving node the digest of the replica data for key: " + key);
+            return Response.newBuilder().setSuccess(true).setKey(key).setDigest(Hashing.fnv1a(data.getValue()))
+                    .setVersion(data.getVersion()).build();
+        } else {
+            logger.debug("Giving node the requested replica data for key: " + key);
+            return Response.newBuilder().setSuccess(true).setKey(key).setValue(data.getValue())
+                    .setVersion(data.getVersion()).build();
+        }
+    }
+
     /**
      * Implementation of deleteReplica method specified in the .proto file. You can
      * use this for communication between nodes
@@ -199,221 +347,1059 @@ public class QuorumImpl extends KeyValueStoreGrpc.KeyValueStoreImplBase {
         Context old = forked.attach();
         try {
             logger.debug("Received replicate delete request with key " + key);
-            Memory.delete(key);
+            clock.update(request.getVersion());
+            Memory.delete(key, request.getVersion());
             response = Response.newBuilder().setSuccess(true).setKey(key).build();
-            logger.debug("Telling the node that we deleted");
-            responseObserver.onNext(response);
+            // acknowledge only once the delete is durable
+            Memory.whenDurable(() -> {
+                logger.debug("Telling the node that we deleted");
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            });
         } catch (Exception e) {
             responseObserver.onError(e);
         } finally {
             forked.detach(old);
+        }
+    }
+
+    /**
+     * Implementation of multiPut method specified in the .proto file. Writes all
+     * pairs of the batch, every key with its own write quorum, and answers with one
+     * response per key once all of them are decided.
+     */
+    @Override
+    public void multiPut(KeyValueBatch request, StreamObserver<BatchResponse> responseObserver) {
+        logger.debug("Received multiPut request with " + request.getPairsCount() + " keys");
+        List<KeyValuePair> writes = new ArrayList<>(request.getPairsCount());
+        for (KeyValuePair pair : request.getPairsList()) {
+            // versions are assigned by the coordinator
+            writes.add(KeyValuePair.newBuilder().setKey(pair.getKey()).setValue(pair.getValue()).build());
+        }
+        Context.current().fork().run(() -> writeBatch(writes, responseObserver));
+    }
+
+    /**
+     * Implementation of multiDelete method specified in the .proto file. Deletes all
+     * keys of the batch, every key with its own write quorum.
+     */
+    @Override
+    public void multiDelete(KeyBatch request, StreamObserver<BatchResponse> responseObserver) {
+        logger.debug("Received multiDelete request with " + request.getKeysCount() + " keys");
+        List<KeyValuePair> writes = new ArrayList<>(request.getKeysCount());
+        for (Key key : request.getKeysList()) {
+            writes.add(KeyValuePair.newBuilder().setKey(key.getKey()).setDeleted(true).build());
+        }
+        Context.current().fork().run(() -> writeBatch(writes, responseObserver));
+    }
+
+    /**
+     * Implementation of multiGet method specified in the .proto file. Reads all keys
+     * of the batch, every key with its own read quorum.
+     */
+    @Override
+    public void multiGet(KeyBatch request, StreamObserver<BatchResponse> responseObserver) {
+        logger.debug("Received multiGet request with " + request.getKeysCount() + " keys");
+        Context.current().fork().run(() -> readBatch(request.getKeysList(), responseObserver));
+    }
+
+    /**
+     * Implementation of replicateBatch method specified in the .proto file. Applies
+     * the writes and deletes of another coordinator in one call.
+     */
+    @Override
+    public void replicateBatch(KeyValueBatch request, StreamObserver<BatchResponse> responseObserver) {
+        logger.debug("Received replicateBatch request with " + request.getPairsCount() + " keys");
+        BatchResponse.Builder response = BatchResponse.newBuilder();
+        for (KeyValuePair pair : request.getPairsList()) {
+            clock.update(pair.getVersion());
+            if (pair.getDeleted()) {
+                Memory.delete(pair.getKey(), pair.getVersion());
+            } else {
+                Memory.put(pair.getKey(), pair.getValue(), pair.getVersion());
+            }
+            response.addResponses(Response.newBuilder().setSuccess(true).setKey(pair.getKey()));
+        }
+        // acknowledge only once the writes are durable
+        Memory.whenDurable(() -> {
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * Implementation of getReplicaBatch method specified in the .proto file. Answers
+     * like getReplica for every key of the batch.
+     */
+    @Override
+    public void getReplicaBatch(KeyBatch request, StreamObserver<BatchResponse> responseObserver) {
+        logger.debug("Received getReplicaBatch request with " + request.getKeysCount() + " keys");
+        BatchResponse.Builder response = BatchResponse.newBuilder();
+        for (Key key : request.getKeysList()) {
+            response.addResponses(replicaResponse(key));
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Implementation of replicateStream method specified in the .proto file. Applies
+     * the frames of another node's replication stream in order and acknowledges the
+     * last entry of every frame, which covers all entries before it.
+     */
+    @Override
+    public StreamObserver<ReplicationFrame> replicateStream(StreamObserver<ReplicationAck> responseObserver) {
+        return new StreamObserver<ReplicationFrame>() {
+            @Override
+            public void onNext(ReplicationFrame frame) {
+                long last = 0;
+                for (ReplicationEntry entry : frame.getEntriesList()) {
+                    KeyValuePair pair = entry.getPair();
+                    clock.update(pair.getVersion());
+                    if (pair.getDeleted()) {
+                        Memory.delete(pair.getKey(), pair.getVersion());
+                    } else {
+                        Memory.put(pair.getKey(), pair.getValue(), pair.getVersion());
+                    }
+                    last = entry.getSequence();
+                }
+                logger.debug("Applied " + frame.getEntriesCount() + " replicated entries from " + frame.getNode());
+                ReplicationAck ack = ReplicationAck.newBuilder().setSequence(last).build();
+                // acknowledge only once the entries are durable; acks may be sent from the
+                // group commit thread, so calls on the observer are serialized
+                Memory.whenDurable(() -> {
+                    synchronized (responseObserver) {
+                        responseObserver.onNext(ack);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.warn("Incoming replication stream failed: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                Memory.whenDurable(() -> {
+                    synchronized (responseObserver) {
+                        responseObserver.onCompleted();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Implementation of treeDigest method specified in the .proto file. Returns
+     * hashes of the Merkle tree of this node for anti-entropy
+     */
+    @Override
+    public void treeDigest(TreeRequest request, StreamObserver<TreeDigest> responseObserver) {
+        antiEntropy.digest(request, responseObserver);
+    }
+
+    /**
+     * Implementation of syncRange method specified in the .proto file. Streams the
+     * entries of the requested key ranges for anti-entropy
+     */
+    @Override
+    public void syncRange(RangeRequest request, StreamObserver<KeyValuePair> responseObserver) {
+        antiEntropy.syncRange(request, responseObserver);
+    }
+
+    /**
+     * Implementation of snapshot method specified in the .proto file. Streams the
+     * entries a fresh node needs from this node
+     */
+    @Override
+    public void snapshot(SnapshotRequest request, StreamObserver<SnapshotChunk> responseObserver) {
+        snapshotTransfer.serve(request, responseObserver);
+    }
+
+    /**
+     * Implementation of stats method specified in the .proto file. Returns the
+     * latency histograms and counters of this node
+     */
+    @Override
+    public void stats(StatsRequest request, StreamObserver<StatsReply> responseObserver) {
+        responseObserver.onNext(Metrics.report(thisNode));
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Stores the write locally with a new version and replicates it to the peers
+     * asynchronously. {@code done} is called exactly once, with true if the write
+     * quorum was reached and false if it can no longer be reached or timed out, and
+     * only after the local write is durable. Peers that miss the write get a hint.
+     */
+    private void replicateData(String key, ByteString value, Consumer<Boolean> done) {
+        // Write key-value pair in-memory, versioned by this coordinator
+        long version = clock.now();
+        Memory.put(key, value, version);
+        KeyValuePair request = KeyValuePair.newBuilder().setKey(key).setValue(value).setVersion(version).build();
+        // the local write counts towards the quorum
+        List<String> peers = peersOf(key);
+        QuorumTracker tracker = new QuorumTracker("replicate", qwritesize - 1, peers, quorumTimeoutNanos,
+                Response::getSuccess, (t, reached) -> {
+                    if (reached) {
+                        logger.debug("Data replication reached quorum");
+                    } else {
+                        logger.warn("Data replication failed. Quorum not reached");
+                    }
+                    // the local write counts only once it is durable
+                    Memory.whenDurable(() -> done.accept(reached));
+                });
+
+        // send async. replication requests to nodes
+        for (String peer : peers) {
+            // a peer that misses the write gets a hint
+            sendReplica(peer, request, hintedHandoff.onFailure(peer, request, tracker.observer(peer)));
         }
+        tracker.start();
     }
 
     /**
-     * Method to check if quorum replication has been achieved.
+     * Method to fetch value from memory.
      * <p>
-     * You are free to change this method as you see fit
-     */
-    private boolean replicateData(String key, String value) {
-        // Write key-value pair in-memory
-        Memory.put(key, value);
-        KeyValuePair request = KeyValuePair.newBuilder().setKey(key).setValue(value).build();
-        List<Response> results = new ArrayList<Response>();
-        // Countdown to know if results are ready or timout 20s
-        final CountDownLatch finishLatch = new CountDownLatch(qwritesize - 1);
-        // Prepare the streamObserver actions per method
-        StreamObserver<Response> responses = new StreamObserver<Response>() {
+     * If quorum bigger than 1 is required, fetch replica values from the R-1 peers
+     * with the best response times, the other peers are asked only if one of them
+     * fails or is slower than usual (hedging). Replica reads still running when the
+     * quorum is decided are cancelled. Every answer of a replica counts towards the
+     * read quorum, the newest version among the local copy and the answers wins
+     * (last writer wins), so replicas that have not yet seen a write do not fail the
+     * read. The result is handed to {@code done}: a pair with the deleted flag if the
+     * newest entry is missing or deleted, null if the read failed.
+     * <p>
+     * Hot keys are answered from the read cache while their lease lasts.
+     */
+    private void gatherdata(String key, Consumer<KeyValuePair> done) {
+        if (readCache != null) {
+            VersionedValue cached = readCache.get(key);
+            if (cached != null) {
+                done.accept(toKeyValuePair(key, cached));
+                return;
+            }
+        }
+        long stamp = readCache == null ? 0 : readCache.stamp(key);
+        VersionedValue local = Memory.getVersioned(key);
+        if (qreadsize > 1) {
+            Key request = Key.newBuilder().setKey(key).setDigest(digestReads).build();
+            List<String> peers = selector.rank(peersOf(key));
+            // the replica reads run in this context, so the losers can be cancelled
+            Context.CancellableContext reads = Context.current().withCancellation();
+            QuorumTracker tracker = new QuorumTracker("getReplica", qreadsize - 1, peers, quorumTimeoutNanos,
+                    result -> true, (t, reached) -> {
+                        reads.cancel(null);
+                        if (!reached) {
+                            logger.warn("Quorum has not been reached, data may be inconsistent");
+                            done.accept(null);
+                            return;
+                        }
+                        resolve(key, local, t.responses(), peers, (newest, stale) -> {
+                            if (stale == null) {
+                                done.accept(null);
+                                return;
+                            }
+                            done.accept(toKeyValuePair(key, newest));
+                            // only after answering the client, and not cancelled with the reads
+                            Context.current().fork().run(() -> readRepair(key, newest, local, stale));
+                            if (readCache != null) {
+                                readCache.put(key, newest, stamp);
+                            }
+                        });
+                    });
+
+            int primaries = Math.min(qreadsize - 1, peers.size());
+            AtomicInteger nextPeer = new AtomicInteger(primaries);
+            reads.run(() -> {
+                for (int i = 0; i < primaries; i++) {
+                    readReplica(request, peers.get(i), peers, nextPeer, tracker);
+                    hedge(request, peers.get(i), peers, nextPeer, tracker, reads);
+                }
+            });
+            tracker.start();
+        } else {
+            // Reads local replica only and issues response
+            done.accept(toKeyValuePair(key, local));
+        }
+    }
+
+    /**
+     * Sends getReplica to the peer, and to the next of the ranked peers not asked yet
+     * if it fails
+     */
+    private void readReplica(Key request, String peer, List<String> ranked, AtomicInteger nextPeer,
+                             QuorumTracker tracker) {
+        stubOf(peer).getReplica(request, selector.track(peer,
+                withFallback(tracker, tracker.observer(peer), () -> {
+                    int next = nextPeer.getAndIncrement();
+                    if (next < ranked.size()) {
+                        logger.debug("getReplica on " + peer + " failed, asking " + ranked.get(next));
+                        readReplica(request, ranked.get(next), ranked, nextPeer, tracker);
+                    }
+                })));
+    }
+
+    /**
+     * Sends the read to the next spare peer as well if the peer hasn't answered
+     * within its hedge delay
+     */
+    private void hedge(Key request, String peer, List<String> ranked, AtomicInteger nextPeer, QuorumTracker tracker,
+                       Context reads) {
+        long delay = selector.hedgeDelayNanos(peer);
+        if (delay < 0 || nextPeer.get() >= ranked.size()) {
+            return;
+        }
+        tracker.after(delay, () -> reads.run(() -> {
+            int spare;
+            if (!tracker.settled(peer) && (spare = nextPeer.getAndIncrement()) < ranked.size()) {
+                logger.debug("getReplica on " + peer + " is slow, asking " + ranked.get(spare));
+                Metrics.counter("quorum.getReplica.hedged").incrementAndGet();
+                readReplica(request, ranked.get(spare), ranked, nextPeer, tracker);
+            }
+        }));
+    }
+
+    /**
+     * Stub for a call to the peer, with the peer's current deadline
+     */
+    private KeyValueStoreStub stubOf(String peer) {
+        return otherServer.get(peer).withDeadlineAfter(selector.deadlineNanos(peer), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Passes everything on to the observer and runs the fallback after an error,
+     * unless the quorum is decided already or the call was cancelled (the losers of
+     * a decided read are cancelled, asking more peers would be wasted)
+     */
+    private static StreamObserver<Response> withFallback(QuorumTracker tracker, StreamObserver<Response> observer,
+                                                         Runnable fallback) {
+        return new StreamObserver<Response>() {
             @Override
             public void onNext(Response response) {
-                // if success save the result
-                logger.info("Replica written " + response.getSuccess());
-                if (response.getSuccess()) results.add(response);
+                observer.onNext(response);
             }
 
             @Override
             public void onError(Throwable t) {
-                logger.warn("Write replica failed: " + t.getMessage());
-                finishLatch.countDown();
+                if (!tracker.isDecided() && Status.fromThrowable(t).getCode() != Status.Code.CANCELLED) {
+                    fallback.run();
+                }
+                observer.onError(t);
             }
 
             @Override
             public void onCompleted() {
-                logger.info("Finished replicate");
-                finishLatch.countDown();
+                observer.onCompleted();
             }
         };
+    }
 
-        // send async. replication requests to nodes
-        for (HashMap.Entry<String, KeyValueStoreStub> entry : otherServer.entrySet()) {
-            entry.getValue().replicate(request, responses);
-        }
-
-        if (qwritesize > 1) {
-            try {
-                // Wait until minimum quorum reached or Timeout after 20s
-                finishLatch.await(20, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                logger.error("Quorum timer failed");
-            }
-            // reach write quorum and only then issue client response
-            int quorum = 1;
-            for (Response result : results) {
-                if (result.getSuccess()) {
-                    quorum++;
+    /**
+     * Finds the newest entry of a read among the local entry and the getReplica
+     * answers, and hands it to {@code done} together with the peers whose copy
+     * differs from it (for read repair). See {@link Resolution}.
+     */
+    private void resolve(String key, VersionedValue local, Map<String, Response> answers, List<String> replicas,
+                         BiConsumer<VersionedValue, Collection<String>> done) {
+        new Resolution(key, local, answers, replicas, done).start();
+    }
+
+    /**
+     * Resolution of the answers of one read. Digest answers carry no value: every
+     * distinct digest at the newest version that matches no value known to the
+     * coordinator is fetched in full from a peer that sent it, or, if that fails,
+     * from the other peers with that digest and then the replicas that didn't
+     * answer. Only real entries are compared, so the last-writer-wins tie-break sees
+     * the actual bytes. If the newest version can't be fetched from anyone,
+     * {@code done} gets null peers and the read fails.
+     */
+    private class Resolution {
+        private final String key;
+        private final VersionedValue local;
+        private final Map<String, Response> answers;
+        private final List<String> spares = new ArrayList<>();
+        private final BiConsumer<VersionedValue, Collection<String>> done;
+        // local entry, full answers and fetched values; guarded by this
+        private final List<VersionedValue> known = new ArrayList<>();
+        private int fetching;
+        // highest version of a digest that couldn't be fetched, -1 if none
+        private long unresolved = -1;
+
+        Resolution(String key, VersionedValue local, Map<String, Response> answers, List<String> replicas,
+                   BiConsumer<VersionedValue, Collection<String>> done) {
+            this.key = key;
+            this.local = local;
+            this.answers = answers;
+            this.done = done;
+            for (String replica : replicas) {
+                if (!answers.containsKey(replica)) {
+                    spares.add(replica);
                 }
             }
-            if (quorum >= qwritesize) {
-                logger.debug("Data replication reached quorum");
-                return true;
-            } else {
-                logger.warn("Data replication failed. Quorum not reached");
+        }
+
+        void start() {
+            long top = Long.MIN_VALUE;
+            if (local != null) {
+                known.add(local);
+                top = local.getVersion();
+            }
+            for (Response response : answers.values()) {
+                clock.update(response.getVersion());
+                if (isDigest(response)) {
+                    top = Math.max(top, response.getVersion());
+                } else {
+                    VersionedValue entry = toVersioned(response);
+                    if (entry != null) {
+                        known.add(entry);
+                        top = Math.max(top, entry.getVersion());
+                    }
+                }
+            }
+            // a tombstone wins over every value of its version
+            Map<Long, List<String>> missing = new HashMap<>();
+            if (!hasTombstone(top)) {
+                for (Map.Entry<String, Response> answer : answers.entrySet()) {
+                    Response response = answer.getValue();
+                    if (isDigest(response) && response.getVersion() == top && !isKnown(response)) {
+                        missing.computeIfAbsent(response.getDigest(), d -> new ArrayList<>()).add(answer.getKey());
+                    }
+                }
+            }
+            if (missing.isEmpty()) {
+                finish();
+                return;
+            }
+            fetching = missing.size();
+            long version = top;
+            // the reads of the quorum are cancelled already
+            Context.current().fork().run(() -> {
+                for (Map.Entry<Long, List<String>> digest : missing.entrySet()) {
+                    List<String> candidates = new ArrayList<>(digest.getValue());
+                    candidates.addAll(spares);
+                    Metrics.counter("quorum.getReplica.fetched").incrementAndGet();
+                    fetch(candidates, 0, version, digest.getKey());
+                }
+            });
+        }
+
+        /**
+         * Fetches the value with the version and digest from the first candidate
+         * that has it
+         */
+        private void fetch(List<String> candidates, int index, long version, long digest) {
+            if (index >= candidates.size()) {
+                logger.warn("Couldn't fetch the newest value of key " + key + " from any replica");
+                synchronized (this) {
+                    unresolved = Math.max(unresolved, version);
+                }
+                fetched();
+                return;
+            }
+            String peer = candidates.get(index);
+            logger.debug("Fetching value of key " + key + " from " + peer);
+            stubOf(peer).getReplica(Key.newBuilder().setKey(key).build(), selector.track(peer,
+                    new StreamObserver<Response>() {
+                        @Override
+                        public void onNext(Response response) {
+                            VersionedValue entry = toVersioned(response);
+                            if (entry != null) {
+                                synchronized (Resolution.this) {
+                                    known.add(entry);
+                                }
+                            }
+                            if (entry != null && !entry.isDeleted() && entry.getVersion() == version
+                                    && Hashing.fnv1a(entry.getValue()) == digest) {
+                                fetched();
+                            } else {
+                                fetch(candidates, index + 1, version, digest);
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            logger.debug("Fetching value of key " + key + " from " + peer + " failed: "
+                                    + t.getMessage());
+                            fetch(candidates, index + 1, version, digest);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                        }
+                    }));
+        }
+
+        private void fetched() {
+            synchronized (this) {
+                if (--fetching > 0) {
+                    return;
+                }
+            }
+            finish();
+        }
+
+        private void finish() {
+            VersionedValue newest = null;
+            long missed;
+            synchronized (this) {
+                for (VersionedValue entry : known) {
+                    if (entry.newerThan(newest)) {
+                        newest = entry;
+                    }
+                }
+                missed = unresolved;
+            }
+            // a value of the same version whose bytes are unknown only loses a tie
+            if (missed >= 0 && (newest == null || missed > newest.getVersion())) {
+                done.accept(null, null);
+                return;
+            }
+            List<String> stale = new ArrayList<>();
+            if (newest != null) {
+                long digest = newest.isDeleted() ? 0 : Hashing.fnv1a(newest.getValue());
+                for (Map.Entry<String, Response> answer : answers.entrySet()) {
+                    if (!matches(newest, digest, answer.getValue())) {
+                        stale.add(answer.getKey());
+                    }
+                }
+            }
+            done.accept(newest, stale);
+        }
+
+        private boolean hasTombstone(long version) {
+            for (VersionedValue entry : known) {
+                if (entry.isDeleted() && entry.getVersion() == version) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Whether a known value has the version and digest of the answer
+         */
+        private boolean isKnown(Response response) {
+            for (VersionedValue entry : known) {
+                if (!entry.isDeleted() && entry.getVersion() == response.getVersion()
+                        && Hashing.fnv1a(entry.getValue()) == response.getDigest()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Whether the answer holds the newest entry, whose value has the digest
+         */
+        private boolean matches(VersionedValue newest, long digest, Response response) {
+            if (response.getVersion() != newest.getVersion()) {
+                return false;
+            }
+            if (newest.isDeleted()) {
+                return response.getDeleted();
+            }
+            if (!response.getSuccess()) {
                 return false;
             }
-        } else
-            // Already issue response to client
-            return true;
+            return isDigest(response) ? response.getDigest() == digest : response.getValue().equals(newest.getValue());
+        }
+
+        private boolean isDigest(Response response) {
+            return digestReads && response.getSuccess();
+        }
     }
 
     /**
-     * Method to fetch value from memory.
-     * <p>
-     * If quorum bigger than 1 is required, fetch replica values from other nodes.
-     * You should also check if the returned values from the replicas are
-     * consistent.
-     * <p>
-     * You are free to change this method if you want
+     * Pushes the winning version of a read to the local copy if it is older, and to
+     * the replicas whose answer differs from it. The repair writes are
+     * fire-and-forget and limited to {@code readRepairRate} per second, a skipped
+     * repair is retried by the next read of the key.
      */
-    private KeyValuePair gatherdata(String key) {
-        Key request = Key.newBuilder().setKey(key).build();
-        List<Response> results = new ArrayList<Response>();
-        String data = Memory.get(key);
-        if (data == null) {
-            logger.warn("Uh oh, couldn't get data for key " + key);
+    private void readRepair(String key, VersionedValue newest, VersionedValue local, Collection<String> stale) {
+        if (newest == null || readRepairLimiter == null) {
+            return;
+        }
+        if (newest.newerThan(local)) {
+            logger.debug("Read repair of local copy of key " + key);
+            if (newest.isDeleted()) {
+                Memory.delete(key, newest.getVersion());
+            } else {
+                Memory.put(key, newest.getValue(), newest.getVersion());
+            }
+        }
+        for (String peer : stale) {
+            if (!readRepairLimiter.tryAcquire(1)) {
+                logger.debug("Read repair of key " + key + " skipped, rate limit reached");
+                return;
+            }
+            logger.debug("Read repair of key " + key + " on " + peer);
+            KeyValueStoreStub stub = otherServer.get(peer);
+            if (newest.isDeleted()) {
+                stub.deleteReplica(Key.newBuilder().setKey(key).setVersion(newest.getVersion()).build(),
+                        REPAIR_OBSERVER);
+            } else {
+                stub.replicate(KeyValuePair.newBuilder().setKey(key).setValue(newest.getValue())
+                        .setVersion(newest.getVersion()).build(), REPAIR_OBSERVER);
+            }
+        }
+    }
+
+    /**
+     * Value or tombstone contained in a getReplica answer, null if the replica
+     * doesn't know the key.
+     */
+    private VersionedValue toVersioned(Response response) {
+        clock.update(response.getVersion());
+        if (response.getSuccess()) {
+            return VersionedValue.of(response.getValue(), response.getVersion());
+        }
+        return response.getDeleted() ? VersionedValue.tombstone(response.getVersion()) : null;
+    }
+
+    /**
+     * Answer to the client for the newest entry of a read, with the value decoded; a
+     * pair with the deleted flag if the key has no value, null (a failed read) if the
+     * value can't be decoded
+     */
+    private KeyValuePair toKeyValuePair(String key, VersionedValue value) {
+        if (value == null || value.isDeleted()) {
+            logger.warn("Couldn't find data for key " + key);
+            return KeyValuePair.newBuilder().setKey(key).setDeleted(true).build();
+        }
+        ByteString decoded;
+        try {
+            decoded = ValueCodec.decode(value.getValue(), maxValueBytes);
+        } catch (DataFormatException e) {
+            logger.error("Cannot decode value of key " + key + ": " + e.getMessage());
             return null;
         }
-        if (qreadsize > 1) {
-            // Countdown to know if results are ready or timout 20s
-            final CountDownLatch finishLatch = new CountDownLatch(qreadsize - 1);
-            // Prepare the streamObserver actions per method
-            StreamObserver<Response> responses = new StreamObserver<Response>() {
-                @Override
-                public void onNext(Response response) {
-                    // if success save the result
-                    logger.info("Received replica " + response.getSuccess());
-                    if (response.getSuccess()) results.add(response);
-                }
+        return KeyValuePair.newBuilder().setKey(key).setValue(decoded).setVersion(value.getVersion()).build();
+    }
+
+    /**
+     * Deletes the key locally with a new version and replicates the tombstone to the
+     * peers asynchronously. {@code done} is called exactly once, with true if the
+     * write quorum was reached and false if it can no longer be reached or timed out,
+     * and only after the local delete is durable. Peers that miss the delete get a hint.
+     */
+    private void replicateDelete(String key, Consumer<Boolean> done) {
+        long version = clock.now();
+        Memory.delete(key, version);
+        // the delete travels as tombstone, which is also the hint for a peer that misses it
+        KeyValuePair request = KeyValuePair.newBuilder().setKey(key).setVersion(version).setDeleted(true).build();
+        // the local delete counts towards the quorum
+        List<String> peers = peersOf(key);
+        QuorumTracker tracker = new QuorumTracker("deleteReplica", qwritesize - 1, peers, quorumTimeoutNanos,
+                Response::getSuccess, (t, reached) -> {
+                    if (reached) {
+                        logger.debug("Delete replication reached quorum");
+                    } else {
+                        logger.warn("Delete replication failed. Quorum not reached");
+                    }
+                    // the local write counts only once it is durable
+                    Memory.whenDurable(() -> done.accept(reached));
+                });
+
+        // send async. replication requests to nodes
+        for (String peer : peers) {
+            sendReplica(peer, request, hintedHandoff.onFailure(peer, request, tracker.observer(peer)));
+        }
+        tracker.start();
+    }
 
-                @Override
-                public void onError(Throwable t) {
-                    logger.warn("Get Replica failed: " + t.getMessage());
-                    finishLatch.countDown();
+    /**
+     * Coordinates a batch of writes and deletes (pairs with the deleted flag). Each
+     * key gets its own version and quorum tracker, but every peer receives a single
+     * replicateBatch call with all keys it replicates. Keys this node doesn't
+     * replicate are forwarded as one batch per coordinator.
+     */
+    private void writeBatch(List<KeyValuePair> writes, StreamObserver<BatchResponse> responseObserver) {
+        BatchResult result = new BatchResult(writes.size(), responseObserver);
+        List<Integer> forwarded = new ArrayList<>();
+        Map<String, List<Integer>> perPeer = new HashMap<>();
+        KeyValuePair[] versioned = new KeyValuePair[writes.size()];
+        QuorumTracker[] trackers = new QuorumTracker[writes.size()];
+        for (int i = 0; i < writes.size(); i++) {
+            KeyValuePair write = writes.get(i);
+            String key = write.getKey();
+            List<String> replicas = ring.preferenceList(key);
+            if (!replicas.contains(thisNode)) {
+                forwarded.add(i);
+                continue;
+            }
+            long version = clock.now();
+            if (write.getDeleted()) {
+                versioned[i] = write.toBuilder().setVersion(version).build();
+                Memory.delete(key, version);
+            } else {
+                versioned[i] = write.toBuilder().setValue(ValueCodec.encode(write.getValue(), compressThreshold))
+                        .setVersion(version).build();
+                Memory.put(key, versioned[i].getValue(), version);
+            }
+            final int index = i;
+            List<String> peers = peersOf(key);
+            trackers[i] = new QuorumTracker(write.getDeleted() ? "deleteReplica" : "replicate", qwritesize - 1,
+                    peers, quorumTimeoutNanos, Response::getSuccess, (t, reached) -> Memory.whenDurable(() ->
+                    result.set(index, Response.newBuilder().setSuccess(reached).setKey(key).build())));
+            for (String peer : peers) {
+                perPeer.computeIfAbsent(peer, n -> new ArrayList<>()).add(i);
+            }
+        }
+
+        for (Map.Entry<String, List<Integer>> entry : perPeer.entrySet()) {
+            String peer = entry.getKey();
+            KeyValueBatch.Builder batch = KeyValueBatch.newBuilder();
+            List<StreamObserver<Response>> observers = new ArrayList<>();
+            for (int i : entry.getValue()) {
+                batch.addPairs(versioned[i]);
+                // a peer that misses the write gets a hint
+                observers.add(hintedHandoff.onFailure(peer, versioned[i], trackers[i].observer(peer)));
+            }
+            if (replicationStreams != null) {
+                // the stream coalesces the writes of the batch into frames anyway
+                for (int i = 0; i < observers.size(); i++) {
+                    replicationStreams.get(peer).send(batch.getPairs(i), selector.track(peer, observers.get(i)));
                 }
+            } else {
+                stubOf(peer).replicateBatch(batch.build(), selector.track(peer, scatter(observers)));
+            }
+        }
+        for (QuorumTracker tracker : trackers) {
+            if (tracker != null) {
+                tracker.start();
+            }
+        }
 
-                @Override
-                public void onCompleted() {
-                    logger.info("Finished getReplica");
-                    finishLatch.countDown();
+        forwardBatch(forwarded, 0, writes, result, (stub, indexes, relay) -> {
+            if (writes.get(indexes.get(0)).getDeleted()) {
+                KeyBatch.Builder batch = KeyBatch.newBuilder();
+                for (int i : indexes) {
+                    batch.addKeys(Key.newBuilder().setKey(writes.get(i).getKey()));
+                }
+                stub.multiDelete(batch.build(), relay);
+            } else {
+                KeyValueBatch.Builder batch = KeyValueBatch.newBuilder();
+                for (int i : indexes) {
+                    batch.addPairs(writes.get(i));
                 }
-            };
+                stub.multiPut(batch.build(), relay);
+            }
+        });
+    }
 
-            for (HashMap.Entry<String, KeyValueStoreStub> entry : otherServer.entrySet()) {
-                entry.getValue().getReplica(request, responses);
-            }
-            try {
-                // Wait until minimum quorum reached or Timeout after 20s
-                finishLatch.await(20, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                logger.error("Quorum timer failed");
-            }
-            // reach read quorum and check if the results are consistent, then answer client
-            int quorum = 1;
-            for (Response result : results) {
-                if (result.getSuccess() && data.equals(result.getValue())) {
-                    quorum++;
+    /**
+     * Coordinates a batch of reads, every key with its own read quorum, but with a
+     * single getReplicaBatch call per peer. As in {@link #gatherdata}, a key whose
+     * peer fails or is slower than usual is read from the next ranked peer on its own,
+     * and the repair of stale replicas runs after the answer, outside the call.
+     */
+    private void readBatch(List<Key> keys, StreamObserver<BatchResponse> responseObserver) {
+        BatchResult result = new BatchResult(keys.size(), responseObserver);
+        List<Integer> forwarded = new ArrayList<>();
+        Map<String, List<Integer>> perPeer = new HashMap<>();
+        QuorumTracker[] trackers = new QuorumTracker[keys.size()];
+        Runnable[] fallbacks = new Runnable[keys.size()];
+        Key[] requests = new Key[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i).getKey();
+            List<String> replicas = ring.preferenceList(key);
+            if (!replicas.contains(thisNode)) {
+                forwarded.add(i);
+                continue;
+            }
+            VersionedValue cached = readCache == null ? null : readCache.get(key);
+            if (cached != null) {
+                result.set(i, toResponse(key, toKeyValuePair(key, cached)));
+                continue;
+            }
+            long stamp = readCache == null ? 0 : readCache.stamp(key);
+            VersionedValue local = Memory.getVersioned(key);
+            final int index = i;
+            if (qreadsize <= 1) {
+                result.set(i, toResponse(key, toKeyValuePair(key, local)));
+                continue;
+            }
+            requests[i] = Key.newBuilder().setKey(key).setDigest(digestReads).build();
+            List<String> peers = selector.rank(peersOf(key));
+            // the single replica reads of the key run in this context, so the losers can be cancelled
+            Context.CancellableContext reads = Context.current().withCancellation();
+            trackers[i] = new QuorumTracker("getReplica", qreadsize - 1, peers, quorumTimeoutNanos, r -> true,
+                    (t, reached) -> {
+                reads.cancel(null);
+                if (!reached) {
+                    logger.warn("Quorum has not been reached for key " + key + ", data may be inconsistent");
+                    result.set(index, toResponse(key, null));
+                    return;
+                }
+                resolve(key, local, t.responses(), peers, (newest, stale) -> {
+                    if (stale == null) {
+                        result.set(index, toResponse(key, null));
+                        return;
+                    }
+                    result.set(index, toResponse(key, toKeyValuePair(key, newest)));
+                    // only after answering the client, and not cancelled with the reads
+                    Context.current().fork().run(() -> readRepair(key, newest, local, stale));
+                    if (readCache != null) {
+                        readCache.put(key, newest, stamp);
+                    }
+                });
+            });
+            // the best R-1 peers get the key in their batch, the others are fallbacks
+            int primaries = Math.min(qreadsize - 1, peers.size());
+            AtomicInteger nextPeer = new AtomicInteger(primaries);
+            QuorumTracker tracker = trackers[i];
+            fallbacks[i] = () -> reads.run(() -> {
+                int next = nextPeer.getAndIncrement();
+                if (next < peers.size()) {
+                    readReplica(requests[index], peers.get(next), peers, nextPeer, tracker);
                 }
+            });
+            for (String peer : peers.subList(0, primaries)) {
+                perPeer.computeIfAbsent(peer, n -> new ArrayList<>()).add(i);
+                hedge(requests[i], peer, peers, nextPeer, tracker, reads);
+            }
+        }
+
+        for (Map.Entry<String, List<Integer>> entry : perPeer.entrySet()) {
+            KeyBatch.Builder batch = KeyBatch.newBuilder();
+            List<StreamObserver<Response>> observers = new ArrayList<>();
+            for (int i : entry.getValue()) {
+                batch.addKeys(requests[i]);
+                observers.add(withFallback(trackers[i], trackers[i].observer(entry.getKey()), fallbacks[i]));
+            }
+            stubOf(entry.getKey()).getReplicaBatch(batch.build(),
+                    selector.track(entry.getKey(), scatter(observers)));
+        }
+        for (QuorumTracker tracker : trackers) {
+            if (tracker != null) {
+                tracker.start();
+            }
+        }
+
+        List<KeyValuePair> entries = new ArrayList<>();
+        if (!forwarded.isEmpty()) {
+            for (Key key : keys) {
+                entries.add(KeyValuePair.newBuilder().setKey(key.getKey()).build());
+            }
+        }
+        forwardBatch(forwarded, 0, entries, result, (stub, indexes, relay) -> {
+            KeyBatch.Builder batch = KeyBatch.newBuilder();
+            for (int i : indexes) {
+                batch.addKeys(keys.get(i));
             }
-            if (quorum >= qreadsize) {
-                logger.debug("Giving client the requested data");
-                return KeyValuePair.newBuilder().setKey(key).setValue(data).build();
+            stub.multiGet(batch.build(), relay);
+        });
+    }
+
+    /**
+     * Forwards the keys of a batch this node doesn't replicate, as one batch per
+     * coordinator: the replica at position {@code attempt} of the key's preference
+     * list. Like {@link #forward}, the keys of an unavailable coordinator go to the
+     * next replica; a key without further replicas fails.
+     */
+    private void forwardBatch(List<Integer> indexes, int attempt, List<KeyValuePair> entries, BatchResult result,
+                              ForwardedBatch call) {
+        Map<String, List<Integer>> byCoordinator = new HashMap<>();
+        for (int i : indexes) {
+            String key = entries.get(i).getKey();
+            List<String> replicas = ring.preferenceList(key);
+            if (attempt < replicas.size()) {
+                byCoordinator.computeIfAbsent(replicas.get(attempt), n -> new ArrayList<>()).add(i);
             } else {
-                logger.warn("Quorum has not been reached, data may be inconsistent");
-                return null;
+                result.set(i, Response.newBuilder().setSuccess(false).setKey(key).build());
             }
-        } else {
-            // Reads local replica only and issues response
-            if (data == null) {
-                logger.warn("Couldn't find data for key " + key);
-                return null;
-            } else
-                return KeyValuePair.newBuilder().setKey(key).setValue(data).build();
+        }
+        for (Map.Entry<String, List<Integer>> entry : byCoordinator.entrySet()) {
+            String coordinator = entry.getKey();
+            List<Integer> group = entry.getValue();
+            logger.debug("Forwarding " + group.size() + " keys of batch to " + coordinator);
+            call.send(otherServer.get(coordinator), group, gather(group, entries, result, () -> {
+                logger.warn(coordinator + " unavailable, forwarding " + group.size()
+                        + " keys of batch to next replica");
+                forwardBatch(group, attempt + 1, entries, result, call);
+            }));
         }
     }
 
     /**
-     * Method to check if quorum replication has been achieved.
-     * <p>
+     * Sends the keys at the indexes of a batch to a coordinator
+     */
+    private interface ForwardedBatch {
+        void send(KeyValueStoreStub stub, List<Integer> indexes, StreamObserver<BatchResponse> relay);
+    }
+
+    /**
+     * Answer to the client for the result of a read: failed if it is null, missing if
+     * the key has no value
+     */
+    private static Response toResponse(String key, KeyValuePair data) {
+        if (data == null || data.getDeleted()) {
+            return Response.newBuilder().setSuccess(false).setKey(key).setMissing(data != null).build();
+        }
+        return Response.newBuilder().setSuccess(true).setKey(key).setValue(data.getValue())
+                .setVersion(data.getVersion()).build();
+    }
+
+    /**
+     * Observer of a batch replica call that hands the per-key responses to the
+     * per-key observers, or the error to all of them.
      */
-    private boolean replicateDelete(String key) {
-        Memory.delete(key);
-        Key request = Key.newBuilder().setKey(key).build();
-        List<Response> results = new ArrayList<Response>();
-        // Countdown to know if results are ready or timout 20s
-        final CountDownLatch finishLatch = new CountDownLatch(qwritesize - 1);
-        // Prepare the streamObserver actions per method
-        StreamObserver<Response> responses = new StreamObserver<Response>() {
+    private static StreamObserver<BatchResponse> scatter(List<StreamObserver<Response>> observers) {
+        return new StreamObserver<BatchResponse>() {
             @Override
-            public void onNext(Response response) {
-                // if success save the result
-                logger.info("Replica deleted " + response.getSuccess());
-                if (response.getSuccess()) results.add(response);
+            public void onNext(BatchResponse response) {
+                for (int i = 0; i < observers.size() && i < response.getResponsesCount(); i++) {
+                    observers.get(i).onNext(response.getResponses(i));
+                }
             }
 
             @Override
             public void onError(Throwable t) {
-                logger.warn("Delete replica failed: " + t.getMessage());
-                finishLatch.countDown();
+                for (StreamObserver<Response> observer : observers) {
+                    observer.onError(t);
+                }
             }
 
             @Override
             public void onCompleted() {
-                logger.info("Finished delete replica");
-                finishLatch.countDown();
+                for (StreamObserver<Response> observer : observers) {
+                    observer.onCompleted();
+                }
             }
         };
+    }
 
-        // send async. replication requests to nodes
-        for (HashMap.Entry<String, KeyValueStoreStub> entry : otherServer.entrySet()) {
-            entry.getValue().deleteReplica(request, responses);
-        }
-
-        if (qwritesize > 1) {
-            try {
-                // Wait until minimum quorum reached or Timeout after 20s
-                finishLatch.await(20, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                logger.error("Quorum timer failed");
-            }
-            // reach read quorum with matching values and issue client response
-            int quorum = 1;
-            for (Response result : results) {
-                if (result.getSuccess()) {
-                    quorum++;
+    /**
+     * Observer of a forwarded batch that puts the per-key responses at their
+     * positions in the original batch; if the coordinator is unavailable the keys
+     * are handed to {@code unavailable}, if the call fails otherwise, these keys fail.
+     */
+    private static StreamObserver<BatchResponse> gather(List<Integer> indexes, List<KeyValuePair> entries,
+                                                        BatchResult result, Runnable unavailable) {
+        return new StreamObserver<BatchResponse>() {
+            @Override
+            public void onNext(BatchResponse response) {
+                for (int i = 0; i < indexes.size() && i < response.getResponsesCount(); i++) {
+                    result.set(indexes.get(i), response.getResponses(i));
                 }
             }
-            // reach write quorum and only then issue client response
-            if (quorum >= qwritesize) {
-                logger.debug("Delete replication reached quorum");
-                return true;
-            } else {
-                logger.warn("Delete replication failed. Quorum not reached");
-                return false;
+
+            @Override
+            public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+                    unavailable.run();
+                    return;
+                }
+                logger.warn("Forwarded batch failed: " + t.getMessage());
+                for (int i : indexes) {
+                    result.set(i, Response.newBuilder().setSuccess(false).setKey(entries.get(i).getKey()).build());
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+
+    /**
+     * Collects the per-key responses of a batch and answers the client once all
+     * keys are decided. The first response for a position wins.
+     */
+    private static class BatchResult {
+        private final AtomicReferenceArray<Response> responses;
+        private final AtomicInteger outstanding;
+        private final StreamObserver<BatchResponse> responseObserver;
+
+        BatchResult(int size, StreamObserver<BatchResponse> responseObserver) {
+            this.responses = new AtomicReferenceArray<>(size);
+            this.outstanding = new AtomicInteger(size);
+            this.responseObserver = responseObserver;
+            if (size == 0) {
+                complete();
+            }
+        }
+
+        void set(int index, Response response) {
+            if (responses.compareAndSet(index, null, response) && outstanding.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            BatchResponse.Builder batch = BatchResponse.newBuilder();
+            for (int i = 0; i < responses.length(); i++) {
+                batch.addResponses(responses.get(i));
+            }
+            responseObserver.onNext(batch.build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    /**
+     * Sends a write (or a delete, if the deleted flag is set) to a peer, over the
+     * replication stream if enabled, else as unary replicate/deleteReplica call.
+     */
+    private void sendReplica(String peer, KeyValuePair write, StreamObserver<Response> answer) {
+        StreamObserver<Response> observer = selector.track(peer, answer);
+        if (replicationStreams != null) {
+            replicationStreams.get(peer).send(write, observer);
+        } else if (write.getDeleted()) {
+            stubOf(peer).deleteReplica(Key.newBuilder().setKey(write.getKey())
+                    .setVersion(write.getVersion()).build(), observer);
+        } else {
+            stubOf(peer).replicate(write, observer);
+        }
+    }
+
+    /**
+     * Other nodes in the preference list of the key, i.e. the replicas this node
+     * coordinates the key with.
+     */
+    private List<String> peersOf(String key) {
+        List<String> peers = new ArrayList<>(ring.preferenceList(key));
+        peers.remove(thisNode);
+        return peers;
+    }
+
+    /**
+     * Hands a client request for a key this node doesn't replicate to the nodes in
+     * the preference list of the key, trying the next one if a node is unavailable,
+     * and relays the answer.
+     */
+    private void forward(String key, BiConsumer<KeyValueStoreStub, StreamObserver<Response>> call,
+                         StreamObserver<Response> responseObserver) {
+        forward(key, ring.preferenceList(key), 0, call, responseObserver);
+    }
+
+    private void forward(String key, List<String> candidates, int index,
+                         BiConsumer<KeyValueStoreStub, StreamObserver<Response>> call,
+                         StreamObserver<Response> responseObserver) {
+        String coordinator = candidates.get(index);
+        logger.debug("Forwarding request for key " + key + " to " + coordinator);
+        call.accept(otherServer.get(coordinator), new StreamObserver<Response>() {
+            @Override
+            public void onNext(Response response) {
+                responseObserver.onNext(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE && index + 1 < candidates.size()) {
+                    logger.warn(coordinator + " unavailable, forwarding request for key " + key + " to next replica");
+                    forward(key, candidates, index + 1, call, responseObserver);
+                } else {
+                    responseObserver.onError(t);
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
             }
-        } else
-            // But already issue response to client
-            return true;
+        });
     }
-    // etc..
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,275 @@
+package de.tub.ise;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.apache.log4j.Logger;
+
+/**
+ * Tracks the replica answers of one quorum operation (put, get or delete).
+ * <p>
+ * Every contacted peer gets its own observer. The tracker completes as soon as
+ * {@code required} peers answered successfully, and fails as soon as the peers
+ * still outstanding can no longer make up the missing successes, or when the
+ * quorum timer fires. The decision is taken exactly once without locks; answers
+ * arriving afterwards are only recorded, which is how slow peers are told apart
+ * from fast ones.
+ */
+public class QuorumTracker {
+
+    static Logger logger = Logger.getLogger(QuorumTracker.class.getName());
+
+    // Fires quorum timeouts, so no request thread has to wait for them
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "quorum-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+
+    /**
+     * Receives the outcome of the quorum, called exactly once.
+     */
+    public interface Listener {
+        void onDecision(QuorumTracker tracker, boolean reached);
+    }
+
+    private final String operation;
+    private final int required;
+    private final long timeoutNanos;
+    private final Predicate<Response> accept;
+    private final Listener listener;
+    private final List<String> peers = new ArrayList<>();
+    private final AtomicIntegerArray states;
+    private final AtomicReferenceArray<Response> responses;
+    private final AtomicLongArray latencies;
+    private final AtomicInteger successes = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean decided = new AtomicBoolean();
+    private volatile long startNanos;
+    private volatile long decisionNanos;
+    private volatile ScheduledFuture<?> timer;
+
+    /**
+     * @param operation name used in log messages
+     * @param required  number of successful peer answers needed for the quorum
+     * @param peers        names of the peers that will be contacted
+     * @param timeoutNanos how long to wait for the answers before the quorum fails
+     * @param accept       decides whether a peer answer counts as success
+     * @param listener     receives the outcome
+     */
+    public QuorumTracker(String operation, int required, List<String> peers, long timeoutNanos,
+                         Predicate<Response> accept, Listener listener) {
+        this.operation = operation;
+        this.required = required;
+        this.timeoutNanos = timeoutNanos;
+        this.accept = accept;
+        this.listener = listener;
+        this.peers.addAll(peers);
+        this.states = new AtomicIntegerArray(peers.size());
+        this.responses = new AtomicReferenceArray<>(peers.size());
+        this.latencies = new AtomicLongArray(peers.size());
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Observer for the answer of the given peer. Must be one of the peers passed to
+     * the constructor, and taken when the call to the peer is sent: the peer's
+     * response time counts from here.
+     */
+    public StreamObserver<Response> observer(String peer) {
+        final int slot = peers.indexOf(peer);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown peer " + peer);
+        }
+        final long sent = System.nanoTime();
+        return new StreamObserver<Response>() {
+            @Override
+            public void onNext(Response response) {
+                responses.set(slot, response);
+                if (accept.test(response)) {
+                    settle(slot, SUCCEEDED, sent);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.CANCELLED) {
+                    // cancelled by this node, e.g. a losing read after the decision
+                    logger.debug(operation + " on " + peer + " cancelled");
+                    settle(slot, FAILED, -1);
+                    return;
+                }
+                logger.warn(operation + " on " + peer + " failed: " + t.getMessage());
+                Metrics.counter("peer." + peer + ".errors").incrementAndGet();
+                settle(slot, FAILED, sent);
+            }
+
+            @Override
+            public void onCompleted() {
+                // answers that were not accepted in onNext count as failures
+                settle(slot, FAILED, sent);
+            }
+        };
+    }
+
+    /**
+     * Arms the quorum timer, or decides right away if the quorum is already known.
+     * Called after the requests have been sent.
+     */
+    public void start() {
+        if (!evaluate()) {
+            timer = TIMER.schedule(() -> {
+                logger.warn(operation + " timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+                Metrics.counter("quorum." + operation + ".timeouts").incrementAndGet();
+                decide(false);
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+            // the decision may have been taken while the timer was armed
+            if (decided.get()) {
+                timer.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a peer's call, sent at {@code sentNanos} (-1 if its
+     * response time is meaningless, e.g. for a cancelled call)
+     */
+    private void settle(int slot, int state, long sentNanos) {
+        if (!states.compareAndSet(slot, PENDING, state)) {
+            return;
+        }
+        long now = System.nanoTime();
+        // since the start of the quorum, to tell fast peers from slow ones
+        latencies.set(slot, now - startNanos);
+        if (sentNanos >= 0) {
+            Metrics.histogram("peer." + peers.get(slot) + ".rtt").record(now - sentNanos);
+        }
+        if (state == SUCCEEDED) {
+            successes.incrementAndGet();
+        } else {
+            failures.incrementAndGet();
+        }
+        evaluate();
+    }
+
+    /**
+     * Decides if the quorum is reached or can no longer be reached.
+     *
+     * @return true if a decision has been taken
+     */
+    private boolean evaluate() {
+        if (decided.get()) {
+            return true;
+        }
+        if (successes.get() >= required) {
+            return decide(true);
+        }
+        int outstanding = peers.size() - successes.get() - failures.get();
+        if (successes.get() + outstanding < required) {
+            return decide(false);
+        }
+        return false;
+    }
+
+    /**
+     * Runs the action after the delay, unless the quorum has been decided by then
+     */
+    public void after(long delayNanos, Runnable action) {
+        TIMER.schedule(() -> {
+            if (!decided.get()) {
+                action.run();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * True once the quorum has been reached or missed
+     */
+    public boolean isDecided() {
+        return decided.get();
+    }
+
+    /**
+     * True once the peer has answered or failed
+     */
+    public boolean settled(String peer) {
+        return states.get(peers.indexOf(peer)) != PENDING;
+    }
+
+    private boolean decide(boolean reached) {
+        if (!decided.compareAndSet(false, true)) {
+            return true;
+        }
+        decisionNanos = System.nanoTime() - startNanos;
+        Metrics.histogram("quorum." + operation).record(decisionNanos);
+        if (!reached) {
+            Metrics.counter("quorum." + operation + ".missed").incrementAndGet();
+        }
+        ScheduledFuture<?> t = timer;
+        if (t != null) {
+            t.cancel(false);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(operation + (reached ? " reached" : " missed") + " quorum after "
+                    + TimeUnit.NANOSECONDS.toMicros(decisionNanos) + "us, fast peers " + fastPeers()
+                    + ", slow peers " + slowPeers());
+        }
+        listener.onDecision(this, reached);
+        return true;
+    }
+
+    /**
+     * Snapshot of all peer answers received so far (accepted or not), by peer name.
+     */
+    public Map<String, Response> responses() {
+        Map<String, Response> result = new HashMap<>();
+        for (int i = 0; i < peers.size(); i++) {
+            Response response = responses.get(i);
+            if (response != null) {
+                result.put(peers.get(i), response);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Peers that answered before the quorum was decided.
+     */
+    public List<String> fastPeers() {
+        List<String> fast = new ArrayList<>();
+        long decision = decided.get() ? decisionNanos : Long.MAX_VALUE;
+        for (int i = 0; i < peers.size(); i++) {
+            if (states.get(i) != PENDING && latencies.get(i) <= decision) {
+                fast.add(peers.get(i));
+            }
+        }
+        return fast;
+    }
+
+    /**
+     * Peers that answered after the quorum was decided or have not answered yet.
+     */
+    public List<String> slowPeers() {
+        List<String> slow = new ArrayList<>(peers);
+        slow.removeAll(fastPeers());
+        return slow;
+    }
+}
@@ -0,0 +1,66 @@
+package de.tub.ise;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket for background work that must not crowd out client
+ * requests (read repair, anti-entropy, hint replay).
+ * <p>
+ * Implemented as a generic cell rate algorithm: instead of a token count it keeps
+ * the time at which the bucket would be full again.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param permitsPerSecond sustained rate
+     * @param burst            permits that may be taken at once after an idle period
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + permitsPerSecond);
+        }
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * Takes the permits if they are available right now.
+     *
+     * @return false if the rate is exceeded, nothing is taken then
+     */
+    public boolean tryAcquire(int permits) {
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long next = Math.max(tat, now) + intervalNanos * permits;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserves the permits unconditionally.
+     *
+     * @return nanoseconds the caller has to wait before using them, 0 if they can be
+     * used right away
+     */
+    public long reserve(int permits) {
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long next = Math.max(tat, now) + intervalNanos * permits;
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+}
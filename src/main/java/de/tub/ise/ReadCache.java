@@ -0,0 +1,159 @@
+package de.tub.ise;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Coordinator cache of quorum read results for hot keys.
+ * <p>
+ * When a quorum read of a key that is read often (estimated with a
+ * {@link FrequencySketch}) completes, its newest version is cached for the lease
+ * time, and further reads of the key are answered from the cache without asking the
+ * replicas. Every change of the key in the local store drops the entry: a write
+ * coordinated by any node reaches this node as replicate or deleteReplica if it is
+ * a replica, so the cache is only stale if this replica misses a write, and then at
+ * most for one lease.
+ * <p>
+ * A read that started before an invalidation of its key is not cached, so a slow
+ * quorum read can't put back a value a write just replaced.
+ * <p>
+ * The frequency sketch is split into shards by key hash, each with its own lock, so
+ * concurrent reads of different keys don't contend on one lock.
+ */
+public class ReadCache implements Memory.ChangeListener {
+
+    // reads within the sketch's memory before a key counts as hot
+    private static final int HOT_READS = 3;
+    private static final int STRIPES = 1024;
+    private static final int SHARDS = 16;
+
+    private final long leaseNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final FrequencySketch[] sketches = new FrequencySketch[SHARDS];
+    // invalidations per key stripe, to detect reads that raced with a write
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param leaseMillis how long a cached read result may be served
+     * @param maxEntries  maximum number of cached keys
+     */
+    public ReadCache(long leaseMillis, int maxEntries) {
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        this.maxEntries = maxEntries;
+        for (int i = 0; i < SHARDS; i++) {
+            sketches[i] = new FrequencySketch(maxEntries * 8 / SHARDS);
+        }
+        Memory.addListener(this);
+        Metrics.gauge("readcache.hits", hits::get);
+        Metrics.gauge("readcache.misses", misses::get);
+        Metrics.gauge("readcache.invalidations", invalidations::get);
+        Metrics.gauge("readcache.keys", entries::size);
+    }
+
+    /**
+     * Cached newest version of the key, null if there is no valid entry. Counts the
+     * read for the hot key detection.
+     */
+    public VersionedValue get(String key) {
+        long hash = Hashing.hash(key);
+        FrequencySketch sketch = sketchOf(hash);
+        synchronized (sketch) {
+            sketch.increment(hash);
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.expires < 0) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        if (entry != null) {
+            entries.remove(key, entry);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stamp to pass to {@link #put(String, VersionedValue, long)}, taken before the
+     * quorum read starts
+     */
+    public long stamp(String key) {
+        return stamps.get(stripeOf(key));
+    }
+
+    /**
+     * Caches the result of a quorum read if the key is hot and hasn't changed since
+     * the stamp was taken.
+     */
+    public void put(String key, VersionedValue newest, long stamp) {
+        if (newest == null) {
+            return;
+        }
+        long hash = Hashing.hash(key);
+        FrequencySketch sketch = sketchOf(hash);
+        int frequency;
+        synchronized (sketch) {
+            frequency = sketch.frequency(hash);
+        }
+        if (frequency < HOT_READS) {
+            return;
+        }
+        if (entries.size() >= maxEntries) {
+            purgeExpired();
+            if (entries.size() >= maxEntries) {
+                return;
+            }
+        }
+        entries.put(key, new Entry(newest, System.nanoTime() + leaseNanos));
+        // an invalidation in between: drop what was just cached
+        if (stamps.get(stripeOf(key)) != stamp) {
+            entries.remove(key);
+        }
+    }
+
+    @Override
+    public void changed(String key, VersionedValue before, VersionedValue after) {
+        stamps.incrementAndGet(stripeOf(key));
+        if (entries.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().expires >= 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private FrequencySketch sketchOf(long hash) {
+        return sketches[(int) (hash >>> 60) & (SHARDS - 1)];
+    }
+
+    private static int stripeOf(String key) {
+        return (int) Hashing.hash(key) & (STRIPES - 1);
+    }
+
+    /**
+     * Cached read result with the end of its lease
+     */
+    private static class Entry {
+        private final VersionedValue value;
+        private final long expires;
+
+        Entry(VersionedValue value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
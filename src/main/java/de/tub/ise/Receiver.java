@@ -1,22 +1,96 @@
 package de.tub.ise;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 
 /**
  * Receiver class, i.e. gRPC Server that serves the KeyValueStore service (see
  * kvstore.proto).
+ * <p>
+ * The execution model is set in the configuration: the executor that runs the
+ * request handlers (gRPC's cached pool, a fixed pool, a work-stealing pool or the
+ * Netty event loops themselves), the number of event loop threads, the transport
+ * (NIO or native epoll) and the HTTP/2 flow control and keepalive settings.
  */
 public class Receiver {
 
     static Logger logger = Logger.getLogger(Receiver.class.getName());
 
     private final Server server;
+    private final QuorumImpl service;
+    private final EventLoopGroup boss;
+    private final EventLoopGroup workers;
+    // null for gRPC's own executor and for the direct executor
+    private final ExecutorService executor;
 
     public Receiver() throws IOException {
-        this.server = ServerBuilder.forPort(KVNodeMain.config.getReceivePort()).addService(new QuorumImpl()).build();
+        Configuration config = KVNodeMain.config;
+        NettyServerBuilder builder = NettyServerBuilder.forPort(config.getReceivePort());
+        if (config.useEpoll() && !Epoll.isAvailable()) {
+            logger.warn("Native epoll transport not available, using NIO: " + Epoll.unavailabilityCause());
+        }
+        if (config.useEpoll() && Epoll.isAvailable()) {
+            boss = new EpollEventLoopGroup(config.getBossThreads(), new DefaultThreadFactory("grpc-boss", true));
+            workers = new EpollEventLoopGroup(config.getWorkerThreads(), new DefaultThreadFactory("grpc-worker", true));
+            builder.channelType(EpollServerSocketChannel.class);
+        } else {
+            boss = new NioEventLoopGroup(config.getBossThreads(), new DefaultThreadFactory("grpc-boss", true));
+            workers = new NioEventLoopGroup(config.getWorkerThreads(), new DefaultThreadFactory("grpc-worker", true));
+            builder.channelType(NioServerSocketChannel.class);
+        }
+        builder.bossEventLoopGroup(boss).workerEventLoopGroup(workers);
+
+        int threads = config.getExecutorThreads() > 0 ? config.getExecutorThreads()
+                : Runtime.getRuntime().availableProcessors();
+        switch (config.getExecutor()) {
+            case "fixed":
+                executor = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("grpc-executor", true));
+                builder.executor(executor);
+                break;
+            case "workstealing":
+                // FIFO mode, the handlers are independent tasks that are never joined
+                executor = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+                builder.executor(executor);
+                break;
+            case "direct":
+                // handlers run on the event loop, a handler that blocks (e.g. on a
+                // write-ahead log sync) stalls every call of its connections
+                executor = null;
+                builder.directExecutor();
+                break;
+            default:
+                executor = null;
+        }
+
+        builder.flowControlWindow(config.getFlowControlWindow())
+                .maxInboundMessageSize(config.getMaxMessageBytes())
+                .permitKeepAliveTime(config.getPermitKeepAliveTime(), TimeUnit.SECONDS);
+        if (config.getMaxConcurrentStreams() > 0) {
+            builder.maxConcurrentCallsPerConnection(config.getMaxConcurrentStreams());
+        }
+        if (config.getKeepAliveTime() > 0) {
+            builder.keepAliveTime(config.getKeepAliveTime(), TimeUnit.SECONDS)
+                    .keepAliveTimeout(config.getKeepAliveTimeout(), TimeUnit.SECONDS);
+        }
+        this.service = new QuorumImpl();
+        this.server = builder.addService(ServerInterceptors.intercept(service, new MetricsInterceptor()))
+                .build();
+        logger.info("Executor " + config.getExecutor() + ", " + (config.useEpoll() && Epoll.isAvailable() ? "epoll"
+                : "nio") + " transport");
     }
 
     /** Start serving requests. */
@@ -38,6 +112,17 @@ public class Receiver {
     public void stop() {
         if (server != null) {
             server.shutdown();
+            try {
+                server.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        service.shutdown();
+        boss.shutdownGracefully();
+        workers.shutdownGracefully();
+        if (executor != null) {
+            executor.shutdown();
         }
     }
 
@@ -0,0 +1,231 @@
+package de.tub.ise;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.tub.ise.KeyValueStoreGrpc.KeyValueStoreStub;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.log4j.Logger;
+
+/**
+ * Client side of the replicateStream channel to one peer.
+ * <p>
+ * Writes are queued; the first write after a flush schedules the next flush
+ * {@code coalesceMicros} later, so all writes arriving within that window go out in
+ * one frame. Writes are numbered when they are put into a frame, so the sequence
+ * numbers follow the order on the stream. The peer acknowledges cumulatively, and
+ * every acknowledged write is answered on its own observer with a successful
+ * {@link Response}, exactly like a unary replicate call, so each write still gets
+ * its own quorum decision. While the stream isn't ready (flow control) writes stay
+ * queued. If the stream breaks, or a write isn't acknowledged within the timeout, all
+ * unacknowledged writes fail (and get hints), and the next write opens a new stream.
+ */
+public class ReplicationStream {
+
+    static Logger logger = Logger.getLogger(ReplicationStream.class.getName());
+
+    // upper bound for the entries of one frame
+    private static final int MAX_FRAME_ENTRIES = 1000;
+    // all streams share one thread for flushing, frames are only built there
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replication-stream");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String thisNode;
+    private final String peer;
+    private final KeyValueStoreStub stub;
+    private final long coalesceMicros;
+    private final long timeoutNanos;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentSkipListMap<Long, Pending> unacknowledged = new ConcurrentSkipListMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledFuture<?> expiry;
+    // only touched by the flusher thread
+    private long sequence;
+    private ClientCallStreamObserver<ReplicationFrame> requests;
+    private Stream current;
+
+    /**
+     * @param timeoutNanos time after which a write that hasn't been acknowledged fails
+     */
+    public ReplicationStream(String thisNode, String peer, KeyValueStoreStub stub, long coalesceMicros,
+                             long timeoutNanos) {
+        this.thisNode = thisNode;
+        this.peer = peer;
+        this.stub = stub;
+        this.coalesceMicros = coalesceMicros;
+        this.timeoutNanos = timeoutNanos;
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(10), timeoutNanos / 4);
+        this.expiry = FLUSHER.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Closes the stream, writes not acknowledged yet fail
+     */
+    public void close() {
+        expiry.cancel(false);
+        FLUSHER.execute(() -> {
+            if (current != null) {
+                reset(current, Status.CANCELLED.withDescription("Replication stream closed").asRuntimeException());
+            }
+        });
+    }
+
+    /**
+     * Queues a write (or a delete, if the deleted flag of the pair is set). The
+     * observer is answered once the peer acknowledged the write or the stream failed.
+     */
+    public void send(KeyValuePair write, StreamObserver<Response> observer) {
+        queue.add(new Pending(write, observer));
+        scheduleFlush(coalesceMicros);
+    }
+
+    private void scheduleFlush(long delayMicros) {
+        if (flushScheduled.compareAndSet(false, true)) {
+            FLUSHER.schedule(this::flush, delayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        try {
+            while (!queue.isEmpty()) {
+                if (requests == null) {
+                    current = new Stream();
+                    requests = (ClientCallStreamObserver<ReplicationFrame>) stub.replicateStream(current);
+                    logger.info("Opened replication stream to " + peer);
+                }
+                if (!requests.isReady()) {
+                    // the onReady handler flushes the rest
+                    return;
+                }
+                ReplicationFrame.Builder frame = ReplicationFrame.newBuilder().setNode(thisNode);
+                Pending pending;
+                while (frame.getEntriesCount() < MAX_FRAME_ENTRIES && (pending = queue.poll()) != null) {
+                    long seq = ++sequence;
+                    unacknowledged.put(seq, pending);
+                    frame.addEntries(ReplicationEntry.newBuilder().setSequence(seq).setPair(pending.write));
+                }
+                requests.onNext(frame.build());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Replication stream to " + peer + " failed: " + e.getMessage());
+            reset(current, e);
+        }
+    }
+
+    /**
+     * Fails the writes that waited longer than the timeout. A stream whose oldest
+     * write wasn't acknowledged in time is considered stuck and replaced.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        Pending pending;
+        while ((pending = queue.peek()) != null && now - pending.queuedNanos > timeoutNanos) {
+            if (queue.remove(pending)) {
+                pending.observer.onError(Status.DEADLINE_EXCEEDED
+                        .withDescription("Replication stream to " + peer + " not ready").asRuntimeException());
+            }
+        }
+        Map.Entry<Long, Pending> oldest = unacknowledged.firstEntry();
+        if (oldest != null && now - oldest.getValue().queuedNanos > timeoutNanos && current != null) {
+            logger.warn("Replication stream to " + peer + " timed out");
+            reset(current, Status.DEADLINE_EXCEEDED.withDescription("Write not acknowledged in time")
+                    .asRuntimeException());
+        }
+    }
+
+    /**
+     * Fails all unacknowledged writes of a broken stream. The flusher opens a new one
+     * for the next write.
+     */
+    private void reset(Stream broken, Throwable cause) {
+        FLUSHER.execute(() -> {
+            if (current != broken) {
+                // an older stream, its writes have been failed already
+                return;
+            }
+            if (requests != null) {
+                try {
+                    requests.onError(Status.CANCELLED.withCause(cause).asRuntimeException());
+                } catch (RuntimeException e) {
+                    // already broken
+                }
+            }
+            requests = null;
+            current = null;
+            // all unacknowledged writes went over the broken stream, queued ones go over the next
+            for (Map.Entry<Long, Pending> entry : unacknowledged.entrySet()) {
+                if (unacknowledged.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().observer.onError(Status.UNAVAILABLE.withCause(cause)
+                            .withDescription("Replication stream to " + peer + " broke").asRuntimeException());
+                }
+            }
+            if (!queue.isEmpty()) {
+                scheduleFlush(0);
+            }
+        });
+    }
+
+    private void acknowledge(long upTo) {
+        for (Map.Entry<Long, Pending> entry : unacknowledged.headMap(upTo, true).entrySet()) {
+            if (unacknowledged.remove(entry.getKey(), entry.getValue())) {
+                Pending pending = entry.getValue();
+                pending.observer.onNext(Response.newBuilder().setSuccess(true).setKey(pending.write.getKey()).build());
+                pending.observer.onCompleted();
+            }
+        }
+    }
+
+    /**
+     * Receives the acknowledgements of one stream
+     */
+    private class Stream implements ClientResponseObserver<ReplicationFrame, ReplicationAck> {
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ReplicationFrame> requestStream) {
+            requestStream.setOnReadyHandler(() -> scheduleFlush(0));
+        }
+
+        @Override
+        public void onNext(ReplicationAck ack) {
+            acknowledge(ack.getSequence());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.warn("Replication stream to " + peer + " broke: " + t.getMessage());
+            reset(this, t);
+        }
+
+        @Override
+        public void onCompleted() {
+            logger.info("Replication stream to " + peer + " closed by peer");
+            reset(this, Status.UNAVAILABLE.asRuntimeException());
+        }
+    }
+
+    /**
+     * A write waiting to be sent or acknowledged
+     */
+    private static class Pending {
+        private final KeyValuePair write;
+        private final StreamObserver<Response> observer;
+        private final long queuedNanos = System.nanoTime();
+
+        Pending(KeyValuePair write, StreamObserver<Response> observer) {
+            this.write = write;
+            this.observer = observer;
+        }
+    }
+}
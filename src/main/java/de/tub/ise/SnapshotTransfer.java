@@ -0,0 +1,226 @@
+package de.tub.ise;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.apache.log4j.Logger;
+
+/**
+ * Bootstrap of a fresh node from the stores of its peers.
+ * <p>
+ * A node that starts with an empty store asks all peers in parallel for a snapshot
+ * of the keys it is a replica of. Each key is sent by exactly one peer (the first
+ * one of its preference list besides the fresh node), so every entry crosses the
+ * network once. If a peer fails, the remaining peers are asked again with the
+ * failed ones excluded and take over their keys; entries received twice are
+ * harmless, as only newer versions are applied.
+ * <p>
+ * Serving a snapshot walks the store once and streams it in chunks, waiting for
+ * the transport to be ready before each chunk, so the transfer runs at network
+ * speed without buffering the store in memory. The snapshot is fuzzy: writes
+ * arriving meanwhile reach the fresh node through replication anyway.
+ */
+public class SnapshotTransfer {
+
+    static Logger logger = Logger.getLogger(SnapshotTransfer.class.getName());
+
+    // serialized size of the entries per chunk
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private final String thisNode;
+    private final Map<String, ManagedChannel> channels;
+    private final TokenRing ring;
+    private final HybridClock clock;
+    // one thread per snapshot being served
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "snapshot-sender");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SnapshotTransfer(String thisNode, Map<String, ManagedChannel> channels, TokenRing ring, HybridClock clock) {
+        this.thisNode = thisNode;
+        this.channels = channels;
+        this.ring = ring;
+        this.clock = clock;
+    }
+
+    /**
+     * Bootstraps this node in the background if its store is empty
+     */
+    public void start() {
+        if (Memory.size() > 0 || channels.isEmpty()) {
+            return;
+        }
+        Thread t = new Thread(this::bootstrap, "bootstrap");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the snapshots being served
+     */
+    public void stop() {
+        senders.shutdownNow();
+    }
+
+    /**
+     * Streams the entries the requesting node is a replica of and this node is
+     * responsible for sending.
+     */
+    public void serve(SnapshotRequest request, StreamObserver<SnapshotChunk> responseObserver) {
+        ServerCallStreamObserver<SnapshotChunk> call = (ServerCallStreamObserver<SnapshotChunk>) responseObserver;
+        Object ready = new Object();
+        Runnable wakeUp = () -> {
+            synchronized (ready) {
+                ready.notifyAll();
+            }
+        };
+        call.setOnReadyHandler(wakeUp);
+        call.setOnCancelHandler(wakeUp);
+        Set<String> exclude = new HashSet<>(request.getExcludeList());
+        senders.execute(() -> {
+            long start = System.nanoTime();
+            long[] sent = new long[1];
+            SnapshotChunk.Builder chunk = SnapshotChunk.newBuilder();
+            int[] bytes = new int[1];
+            try {
+                Memory.forEach((key, value) -> {
+                    if (!sender(key, request.getNode(), exclude)) {
+                        return;
+                    }
+                    KeyValuePair pair = value.toKeyValuePair(key);
+                    chunk.addPairs(pair);
+                    bytes[0] += pair.getSerializedSize();
+                    if (bytes[0] >= CHUNK_BYTES) {
+                        send(call, chunk.build(), ready);
+                        sent[0] += chunk.getPairsCount();
+                        chunk.clear();
+                        bytes[0] = 0;
+                    }
+                });
+                if (chunk.getPairsCount() > 0) {
+                    send(call, chunk.build(), ready);
+                    sent[0] += chunk.getPairsCount();
+                }
+                call.onCompleted();
+                logger.info("Sent snapshot of " + sent[0] + " entries to " + request.getNode() + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            } catch (StatusRuntimeException e) {
+                logger.warn("Snapshot for " + request.getNode() + " aborted: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * True if this node sends the key to the requesting node: the first node of the
+     * preference list that is neither the requesting one nor excluded
+     */
+    private boolean sender(String key, String node, Set<String> exclude) {
+        List<String> replicas = ring.preferenceList(key);
+        if (!replicas.contains(node)) {
+            return false;
+        }
+        for (String replica : replicas) {
+            if (!replica.equals(node) && !exclude.contains(replica)) {
+                return replica.equals(thisNode);
+            }
+        }
+        return false;
+    }
+
+    private static void send(ServerCallStreamObserver<SnapshotChunk> call, SnapshotChunk chunk, Object ready) {
+        synchronized (ready) {
+            while (!call.isReady()) {
+                if (call.isCancelled()) {
+                    throw Status.CANCELLED.withDescription("snapshot cancelled").asRuntimeException();
+                }
+                try {
+                    ready.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Status.CANCELLED.withCause(e).asRuntimeException();
+                }
+            }
+        }
+        call.onNext(chunk);
+    }
+
+    private void bootstrap() {
+        long start = System.nanoTime();
+        AtomicLong received = new AtomicLong();
+        List<String> sources = new ArrayList<>(channels.keySet());
+        Set<String> exclude = new HashSet<>();
+        while (!sources.isEmpty()) {
+            List<String> failed = fetch(sources, exclude, received);
+            if (failed.isEmpty()) {
+                break;
+            }
+            sources.removeAll(failed);
+            exclude.addAll(failed);
+            if (!sources.isEmpty()) {
+                logger.warn("Bootstrap from " + failed + " failed, asking " + sources + " again");
+            }
+        }
+        logger.info("Bootstrap received " + received.get() + " entries from " + sources + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    /**
+     * Fetches the snapshots of the given peers in parallel.
+     *
+     * @return the peers that failed
+     */
+    private List<String> fetch(List<String> sources, Set<String> exclude, AtomicLong received) {
+        SnapshotRequest request = SnapshotRequest.newBuilder().setNode(thisNode).addAllExclude(exclude).build();
+        List<String> failed = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(sources.size());
+        for (String peer : sources) {
+            KeyValueStoreGrpc.newStub(channels.get(peer)).snapshot(request, new StreamObserver<SnapshotChunk>() {
+                @Override
+                public void onNext(SnapshotChunk chunk) {
+                    for (KeyValuePair pair : chunk.getPairsList()) {
+                        clock.update(pair.getVersion());
+                        Memory.restore(pair);
+                    }
+                    received.addAndGet(chunk.getPairsCount());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.debug("Snapshot from " + peer + " failed: " + t.getMessage());
+                    synchronized (failed) {
+                        failed.add(peer);
+                    }
+                    done.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (failed) {
+            return new ArrayList<>(failed);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package de.tub.ise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Point-in-time snapshots of {@link Memory} next to the {@link WriteAheadLog}.
+ * <p>
+ * A snapshot is taken without blocking writers: the log is cut at an LSN first,
+ * then all entries are written out while writes go on. Such a fuzzy snapshot holds
+ * every change before the LSN and possibly some after it; as changes only apply if
+ * they are newer, replaying the log from the LSN over it gives the same store.
+ * Once the snapshot is on disk, older snapshots and log segments are deleted, so a
+ * restart reads one snapshot and the log tail instead of the whole write history.
+ * <p>
+ * Snapshot files hold length-delimited {@link KeyValuePair}s and are named after
+ * their LSN. They are written to a temporary file and renamed, so a crash never
+ * leaves a partial snapshot behind.
+ */
+public class Snapshots {
+
+    static Logger logger = Logger.getLogger(Snapshots.class.getName());
+
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final File dir;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param dir directory of the snapshot files, usually the log directory
+     */
+    public Snapshots(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Restores the entries of the newest snapshot.
+     *
+     * @return LSN of the first log record that is not in the snapshot, 0 if there is
+     * no snapshot
+     */
+    public long load(Consumer<KeyValuePair> restore) throws IOException {
+        List<File> snapshots = snapshots();
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        File newest = snapshots.get(snapshots.size() - 1);
+        long entries = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(newest))) {
+            KeyValuePair entry;
+            while ((entry = KeyValuePair.parseDelimitedFrom(in)) != null) {
+                restore.accept(entry);
+                entries++;
+            }
+        }
+        logger.info("Loaded " + entries + " entries from snapshot " + newest);
+        return lsnOf(newest);
+    }
+
+    /**
+     * Takes a snapshot every {@code intervalSeconds} seconds, 0 disables them
+     */
+    public void start(WriteAheadLog wal, long intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                take(wal);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Snapshot failed", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes a snapshot of the store, then deletes the older snapshots and the log
+     * segments it replaces.
+     */
+    public synchronized void take(WriteAheadLog wal) throws IOException {
+        long start = System.nanoTime();
+        long lsn = wal.rollSegment();
+        List<File> existing = snapshots();
+        if (!existing.isEmpty() && lsnOf(existing.get(existing.size() - 1)) == lsn) {
+            // nothing changed since the last snapshot
+            return;
+        }
+        File snapshot = new File(dir, String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+        File tmp = new File(dir, snapshot.getName() + ".tmp");
+        long[] entries = new long[1];
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            OutputStream out = new BufferedOutputStream(file, 1 << 16);
+            try {
+                Memory.forEach((key, value) -> {
+                    try {
+                        value.toKeyValuePair(key).writeDelimitedTo(out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    entries[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        for (File older : existing) {
+            if (lsnOf(older) < lsn && !older.delete()) {
+                logger.warn("Cannot delete snapshot " + older);
+            }
+        }
+        wal.truncateBefore(lsn);
+        logger.info("Snapshot " + snapshot + " with " + entries[0] + " entries took "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    private List<File> snapshots() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        List<File> snapshots = new ArrayList<>(files == null ? new ArrayList<>() : Arrays.asList(files));
+        snapshots.sort((a, b) -> Long.compare(lsnOf(a), lsnOf(b)));
+        return snapshots;
+    }
+
+    private static long lsnOf(File snapshot) {
+        String name = snapshot.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
@@ -0,0 +1,40 @@
+package de.tub.ise;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage behind {@link Memory}. Implementations keep one {@link VersionedValue}
+ * (value or tombstone) per key and must be safe for concurrent use.
+ */
+public interface StorageEngine {
+
+    /**
+     * Value or tombstone of the key, null if it is unknown.
+     */
+    VersionedValue get(String key);
+
+    /**
+     * Stores the update if it is newer than the stored entry of the key (see
+     * {@link VersionedValue#newerThan(VersionedValue)}), atomically with respect to
+     * other updates of the same key.
+     *
+     * @param changed told about the replaced entry before this method returns, if the
+     *                update was stored
+     * @return true if the update was stored
+     */
+    boolean putIfNewer(String key, VersionedValue update, Memory.ChangeListener changed);
+
+    /**
+     * Calls the action for every entry, tombstones included. Weakly consistent:
+     * concurrent changes may or may not be seen.
+     */
+    void forEach(BiConsumer<String, VersionedValue> action);
+
+    /**
+     * Number of keys, tombstones included.
+     */
+    long size();
+
+    void close() throws IOException;
+}
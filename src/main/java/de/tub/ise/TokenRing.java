@@ -0,0 +1,72 @@
+package de.tub.ise;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing ring that partitions the key space between the nodes.
+ * <p>
+ * Every node owns {@code vnodes} tokens on a 64 bit ring. The preference list of a
+ * key are the first {@code replicationFactor} distinct nodes found walking the ring
+ * clockwise from the hash of the key; the first of them coordinates the key. All
+ * nodes build the ring from the same configuration, so they agree on the
+ * preference lists without talking to each other.
+ */
+public class TokenRing {
+
+    private final TreeMap<Long, String> tokens = new TreeMap<>();
+    private final int replicationFactor;
+
+    public TokenRing(Collection<String> nodes, int vnodes, int replicationFactor) {
+        if (replicationFactor < 1 || replicationFactor > nodes.size()) {
+            throw new IllegalArgumentException("Replication factor " + replicationFactor + " not in 1.."
+                    + nodes.size());
+        }
+        if (vnodes < 1) {
+            throw new IllegalArgumentException("Number of vnodes must be positive: " + vnodes);
+        }
+        this.replicationFactor = replicationFactor;
+        for (String node : nodes) {
+            for (int i = 0; i < vnodes; i++) {
+                // on a (very unlikely) collision the smaller node name keeps the token
+                tokens.merge(Hashing.hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    /**
+     * Nodes that store the key, the coordinator first.
+     */
+    public List<String> preferenceList(String key) {
+        List<String> nodes = new ArrayList<>(replicationFactor);
+        long hash = Hashing.hash(key);
+        collect(tokens.tailMap(hash, true), nodes);
+        collect(tokens.headMap(hash, false), nodes);
+        return nodes;
+    }
+
+    private void collect(Map<Long, String> range, List<String> nodes) {
+        for (String node : range.values()) {
+            if (nodes.size() == replicationFactor) {
+                return;
+            }
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+    }
+
+    /**
+     * True if the node is in the preference list of the key.
+     */
+    public boolean isReplica(String node, String key) {
+        return preferenceList(key).contains(node);
+    }
+
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+}
@@ -0,0 +1,159 @@
+package de.tub.ise;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Encoding of the values as they are stored and replicated. The coordinator of a
+ * write encodes the client's value once, the replicas store and send the encoded
+ * bytes as they are, and the coordinator of a read decodes them for the client.
+ * <p>
+ * Values from the threshold on are compressed with deflate if that makes them
+ * smaller. A compressed value starts with a marker byte (0xFF, which never starts
+ * a UTF-8 string), a codec byte and the length of the original value; a client
+ * value that happens to start with the marker is stored behind a two byte header
+ * without compression. All other values are stored unchanged.
+ * <p>
+ * Values written before this encoding existed are marked as such in the log,
+ * snapshots and data files (format 0), and {@link #migrate(ByteString) migrated} when
+ * they are loaded, so every stored value is in this encoding and a value starting
+ * with the marker is never taken for a client value.
+ */
+public final class ValueCodec {
+
+    /**
+     * Format number of values in this encoding, in the log and snapshot records
+     */
+    public static final int FORMAT = 1;
+
+    private static final byte MARKER = (byte) 0xFF;
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final ByteString RAW_HEADER = ByteString.copyFrom(new byte[]{MARKER, RAW});
+    // marker, codec, original length
+    private static final int HEADER = 6;
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private ValueCodec() {
+    }
+
+    /**
+     * Stored form of a client value, compressed if it has at least
+     * {@code threshold} bytes (0 disables compression) and compresses well
+     */
+    public static ByteString encode(ByteString value, int threshold) {
+        if (threshold > 0 && value.size() >= threshold) {
+            ByteString compressed = deflate(value);
+            if (compressed != null) {
+                Metrics.counter("compression.values").incrementAndGet();
+                Metrics.counter("compression.saved").addAndGet(value.size() - compressed.size());
+                return compressed;
+            }
+        }
+        if (!value.isEmpty() && value.byteAt(0) == MARKER) {
+            return RAW_HEADER.concat(value);
+        }
+        return value;
+    }
+
+    /**
+     * Stored form of a value written before this encoding existed
+     */
+    public static ByteString migrate(ByteString legacy) {
+        if (!legacy.isEmpty() && legacy.byteAt(0) == MARKER) {
+            return RAW_HEADER.concat(legacy);
+        }
+        return legacy;
+    }
+
+    /**
+     * Client value of a stored value
+     *
+     * @param maxBytes upper bound for the size of a decompressed value
+     * @throws DataFormatException if the stored value is corrupt or decompresses to
+     *                             more than {@code maxBytes}
+     */
+    public static ByteString decode(ByteString stored, int maxBytes) throws DataFormatException {
+        if (stored.isEmpty() || stored.byteAt(0) != MARKER) {
+            return stored;
+        }
+        if (stored.size() < 2) {
+            throw new DataFormatException("Value header is truncated");
+        }
+        switch (stored.byteAt(1)) {
+            case RAW:
+                return stored.substring(2);
+            case DEFLATE:
+                return inflate(stored, maxBytes);
+            default:
+                throw new DataFormatException("Unknown value codec " + stored.byteAt(1));
+        }
+    }
+
+    /**
+     * Compressed form of the value, null if it isn't smaller than the value
+     */
+    private static ByteString deflate(ByteString value) {
+        if (value.size() <= HEADER) {
+            return null;
+        }
+        byte[] input = value.toByteArray();
+        byte[] output = new byte[input.length];
+        output[0] = MARKER;
+        output[1] = DEFLATE;
+        for (int i = 0; i < 4; i++) {
+            output[2 + i] = (byte) (input.length >>> (24 - 8 * i));
+        }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        int length = HEADER;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        // a copy of the exact size, the stored value shouldn't keep the whole buffer
+        return ByteString.copyFrom(output, 0, length);
+    }
+
+    private static ByteString inflate(ByteString stored, int maxBytes) throws DataFormatException {
+        if (stored.size() < HEADER) {
+            throw new DataFormatException("Value header is truncated");
+        }
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            length = length << 8 | stored.byteAt(2 + i) & 0xff;
+        }
+        // the length comes from the stored bytes, check it before allocating
+        if (length < 0 || length > maxBytes) {
+            throw new DataFormatException("Compressed value of " + length + " bytes exceeds the maximum of "
+                    + maxBytes);
+        }
+        byte[] output = new byte[length];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(stored.substring(HEADER).toByteArray());
+        int inflated = 0;
+        while (inflated < length && !inflater.finished()) {
+            int n = inflater.inflate(output, inflated, length - inflated);
+            if (n == 0 && inflater.needsInput()) {
+                break;
+            }
+            inflated += n;
+        }
+        if (inflated != length) {
+            throw new DataFormatException("Compressed value is truncated");
+        }
+        return UnsafeByteOperations.unsafeWrap(output);
+    }
+}
@@ -0,0 +1,84 @@
+package de.tub.ise;
+
+import java.util.Comparator;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Value of a key together with the version of the write that produced it.
+ * Deletes are kept as tombstones, so a delete wins over older writes that
+ * arrive later. Values are kept as the bytes received on the wire.
+ */
+public final class VersionedValue {
+
+    private static final Comparator<ByteString> ORDER = ByteString.unsignedLexicographicalComparator();
+
+    private final ByteString value;
+    private final long version;
+    private final boolean deleted;
+
+    private VersionedValue(ByteString value, long version, boolean deleted) {
+        this.value = value;
+        this.version = version;
+        this.deleted = deleted;
+    }
+
+    public static VersionedValue of(ByteString value, long version) {
+        return new VersionedValue(value, version, false);
+    }
+
+    public static VersionedValue tombstone(long version) {
+        return new VersionedValue(null, version, true);
+    }
+
+    /**
+     * Last-writer-wins order: the larger version wins. Equal versions written by
+     * different coordinators are ordered deterministically (tombstone first, then
+     * by the bytes of the value), so all replicas pick the same winner.
+     */
+    public boolean newerThan(VersionedValue other) {
+        if (other == null) {
+            return true;
+        }
+        if (version != other.version) {
+            return version > other.version;
+        }
+        if (deleted != other.deleted) {
+            return deleted;
+        }
+        return !deleted && ORDER.compare(value, other.value) > 0;
+    }
+
+    public ByteString getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Record of this entry as stored, for the log, snapshots and the bulk transfers
+     * between nodes. The value stays encoded, so the record carries
+     * {@link ValueCodec#FORMAT}.
+     */
+    public KeyValuePair toKeyValuePair(String key) {
+        KeyValuePair.Builder record = KeyValuePair.newBuilder().setKey(key).setVersion(version)
+                .setFormat(ValueCodec.FORMAT);
+        if (deleted) {
+            record.setDeleted(true);
+        } else {
+            record.setValue(value);
+        }
+        return record.build();
+    }
+
+    @Override
+    public String toString() {
+        return (deleted ? "<deleted>" : value.size() + " bytes") + "@" + version;
+    }
+}
@@ -0,0 +1,371 @@
+package de.tub.ise;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Segmented write-ahead log behind {@link Memory}.
+ * <p>
+ * Every applied write and delete is appended as a record (length, CRC32, serialized
+ * {@link KeyValuePair}) to the current segment; a segment is closed and a new one
+ * started when it exceeds the segment size. Records are numbered with log sequence
+ * numbers (LSN), and segment files are named after the LSN of their first record.
+ * <p>
+ * Appending doesn't sync. A group commit thread syncs the log and then runs the
+ * callbacks registered with {@link #whenDurable(Runnable)}, so all writes that
+ * arrived during one fsync share the next one. The sync policy decides when that
+ * thread syncs:
+ * <ul>
+ * <li>{@code always}: as soon as there are unsynced records,</li>
+ * <li>{@code batch}: every {@code fsyncInterval} milliseconds,</li>
+ * <li>{@code os}: never, the OS writes the pages back; callbacks run right away.</li>
+ * </ul>
+ * <p>
+ * A {@link Snapshots snapshot} makes the records before its LSN obsolete; the log
+ * is then cut with {@link #rollSegment()} and {@link #truncateBefore(long)}, and
+ * recovery replays only the records from that LSN on.
+ */
+public class WriteAheadLog {
+
+    static Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * When the log is synced to disk
+     */
+    public enum SyncPolicy {
+        ALWAYS, BATCH, OS
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final SyncPolicy policy;
+    private final long intervalMillis;
+    private final Object lock = new Object();
+    private final PriorityBlockingQueue<Waiter> waiters = new PriorityBlockingQueue<>();
+    private final Semaphore unsynced = new Semaphore(0);
+    // guarded by lock
+    private FileChannel channel;
+    private long segmentStart;
+    private long appendedLsn;
+    private volatile long durableLsn;
+    private volatile boolean closed;
+    private Thread committer;
+
+    /**
+     * @param dir            directory of the segment files
+     * @param segmentBytes   size after which a new segment is started
+     * @param policy         when the log is synced
+     * @param intervalMillis sync interval for {@link SyncPolicy#BATCH}
+     */
+    public WriteAheadLog(File dir, long segmentBytes, SyncPolicy policy, long intervalMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Replays all intact records from the given LSN on in LSN order, cuts off a torn
+     * record at the end of the last segment, and opens the log for appending.
+     */
+    public void open(long fromLsn, Consumer<KeyValuePair> replay) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create log directory " + dir);
+        }
+        List<File> segments = segments();
+        long next = fromLsn;
+        long replayed = 0;
+        long lastEnd = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            File segment = segments.get(i);
+            long start = startOf(segment);
+            boolean last = i == segments.size() - 1;
+            if (!last && startOf(segments.get(i + 1)) <= fromLsn) {
+                // all records of the segment are older than the snapshot
+                continue;
+            }
+            long records = replay(segment, Math.max(0, fromLsn - start), replay, last);
+            replayed += Math.max(0, records - Math.max(0, fromLsn - start));
+            next = Math.max(next, start + records);
+            lastEnd = start + records;
+        }
+        synchronized (lock) {
+            appendedLsn = next;
+            durableLsn = next;
+            // a new segment if the last one ends before the snapshot, so file names
+            // keep matching the LSNs
+            if (segments.isEmpty() || lastEnd < next) {
+                roll();
+            } else {
+                File last = segments.get(segments.size() - 1);
+                segmentStart = startOf(last);
+                channel = new RandomAccessFile(last, "rw").getChannel();
+                channel.position(channel.size());
+            }
+        }
+        logger.info("Write-ahead log in " + dir + " replayed " + replayed + " records from LSN " + fromLsn
+                + ", sync policy " + policy);
+        if (policy != SyncPolicy.OS) {
+            committer = new Thread(this::commitLoop, "group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    /**
+     * Appends a record, without waiting for it to be durable.
+     *
+     * @return LSN of the record
+     */
+    public long append(KeyValuePair record) throws IOException {
+        byte[] payload = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long lsn;
+        synchronized (lock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            lsn = appendedLsn++;
+            if (channel.size() >= segmentBytes) {
+                roll();
+            }
+        }
+        if (policy == SyncPolicy.ALWAYS) {
+            unsynced.release();
+        }
+        return lsn;
+    }
+
+    /**
+     * Runs the callback once all records appended so far are durable, right away if
+     * they already are or the sync policy is {@code os}.
+     */
+    public void whenDurable(Runnable callback) {
+        long target;
+        synchronized (lock) {
+            target = appendedLsn;
+        }
+        if (policy == SyncPolicy.OS || target <= durableLsn) {
+            callback.run();
+            return;
+        }
+        waiters.add(new Waiter(target, callback));
+        // the committer may have synced in between
+        if (target <= durableLsn) {
+            runWaiters();
+        }
+    }
+
+    /**
+     * Closes the current segment, unless it is empty, and starts a new one.
+     *
+     * @return LSN of the first record of the new segment: all records before it are
+     * in the closed segments and already applied
+     */
+    public long rollSegment() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (appendedLsn > segmentStart) {
+                roll();
+            }
+            return segmentStart;
+        }
+    }
+
+    /**
+     * Deletes the segments that only hold records before the given LSN. The current
+     * segment is kept.
+     */
+    public void truncateBefore(long lsn) {
+        List<File> segments = segments();
+        for (int i = 0; i + 1 < segments.size() && startOf(segments.get(i + 1)) <= lsn; i++) {
+            if (!segments.get(i).delete()) {
+                logger.warn("Cannot delete log segment " + segments.get(i));
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            channel.force(true);
+            channel.close();
+            durableLsn = appendedLsn;
+        }
+        if (committer != null) {
+            committer.interrupt();
+        }
+        runWaiters();
+    }
+
+    // must hold lock
+    private void roll() throws IOException {
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+            durableLsn = Math.max(durableLsn, appendedLsn);
+        }
+        segmentStart = appendedLsn;
+        File segment = new File(dir, String.format("%s%020d%s", PREFIX, segmentStart, SUFFIX));
+        channel = new RandomAccessFile(segment, "rw").getChannel();
+        channel.position(channel.size());
+    }
+
+    private void commitLoop() {
+        while (!closed) {
+            try {
+                if (policy == SyncPolicy.BATCH) {
+                    Thread.sleep(intervalMillis);
+                } else {
+                    unsynced.tryAcquire(100, TimeUnit.MILLISECONDS);
+                }
+                // take all records appended while sleeping or syncing
+                unsynced.drainPermits();
+                sync();
+                runWaiters();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("Syncing the write-ahead log failed", e);
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        while (true) {
+            long target;
+            FileChannel current;
+            synchronized (lock) {
+                target = appendedLsn;
+                current = channel;
+            }
+            if (target <= durableLsn || closed) {
+                return;
+            }
+            try {
+                current.force(false);
+                durableLsn = target;
+                return;
+            } catch (ClosedChannelException e) {
+                // the segment was rolled (and synced) meanwhile, sync the new one
+            }
+        }
+    }
+
+    private void runWaiters() {
+        Waiter waiter;
+        while ((waiter = waiters.peek()) != null && waiter.lsn <= durableLsn) {
+            if (waiters.remove(waiter)) {
+                try {
+                    waiter.callback.run();
+                } catch (RuntimeException e) {
+                    logger.error("Durability callback failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of intact records in the segment, the first {@code skip} of
+     * them are not replayed
+     */
+    private long replay(File segment, long skip, Consumer<KeyValuePair> replay, boolean last) throws IOException {
+        long records = 0;
+        long validBytes = 0;
+        long size = segment.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                // a garbage length is a torn header, checked before allocating the payload
+                if (length < 0 || length > size - validBytes - HEADER_BYTES) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                if (records >= skip) {
+                    replay.accept(KeyValuePair.parseFrom(payload));
+                }
+                records++;
+                validBytes += HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // end of segment, possibly a torn record
+        }
+        if (validBytes < size) {
+            if (!last) {
+                throw new IOException("Corrupt record in log segment " + segment + " at byte " + validBytes);
+            }
+            logger.warn("Cutting off torn record at the end of " + segment);
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.setLength(validBytes);
+            }
+        }
+        return records;
+    }
+
+    private List<File> segments() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        List<File> segments = new ArrayList<>(files == null ? new ArrayList<>() : Arrays.asList(files));
+        segments.sort((a, b) -> Long.compare(startOf(a), startOf(b)));
+        return segments;
+    }
+
+    private static long startOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Callback waiting for an LSN to become durable
+     */
+    private static class Waiter implements Comparable<Waiter> {
+        private final long lsn;
+        private final Runnable callback;
+
+        Waiter(long lsn, Runnable callback) {
+            this.lsn = lsn;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            return Long.compare(lsn, other.lsn);
+        }
+    }
+}
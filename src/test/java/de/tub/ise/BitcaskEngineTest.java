@@ -0,0 +1,185 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BitcaskEngineTest {
+
+    private static final int FILE_BYTES = 4096;
+    private static final Memory.ChangeListener IGNORE = (key, before, after) -> { };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BitcaskEngine engine;
+
+    @After
+    public void close() throws IOException {
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    private BitcaskEngine open(File dir, long graceSeconds) throws IOException {
+        if (engine != null) {
+            engine.close();
+        }
+        engine = new BitcaskEngine(dir, FILE_BYTES, graceSeconds);
+        engine.open();
+        return engine;
+    }
+
+    private static VersionedValue value(String value, long version) {
+        return VersionedValue.of(ByteString.copyFromUtf8(value), version);
+    }
+
+    private static long versionAt(long millis) {
+        // hybrid logical clock timestamp without logical part
+        return millis << 16;
+    }
+
+    private static int dataFiles(File dir) {
+        return dir.listFiles((d, name) -> name.startsWith("data-") && name.endsWith(".db")).length;
+    }
+
+    @Test
+    public void keepsTheNewestVersion() throws IOException {
+        BitcaskEngine engine = open(folder.newFolder(), 0);
+        assertTrue(engine.putIfNewer("k", value("b", 2), IGNORE));
+        assertFalse(engine.putIfNewer("k", value("a", 1), IGNORE));
+        assertEquals(ByteString.copyFromUtf8("b"), engine.get("k").getValue());
+        assertTrue(engine.putIfNewer("k", VersionedValue.tombstone(3), IGNORE));
+        assertTrue(engine.get("k").isDeleted());
+        assertNull(engine.get("unknown"));
+    }
+
+    @Test
+    public void recoveryRestoresValuesAndTombstones() throws IOException {
+        File dir = folder.newFolder();
+        BitcaskEngine engine = open(dir, 0);
+        for (int i = 0; i < 300; i++) {
+            engine.putIfNewer("k" + i, value("v" + i, 1), IGNORE);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            engine.putIfNewer("k" + i, VersionedValue.tombstone(2), IGNORE);
+        }
+        assertTrue("the records should span several data files", dataFiles(dir) > 1);
+
+        engine = open(dir, 0);
+        assertEquals(300, engine.size());
+        for (int i = 0; i < 300; i++) {
+            VersionedValue entry = engine.get("k" + i);
+            if (i % 3 == 0) {
+                assertTrue(entry.isDeleted());
+                assertEquals(2, entry.getVersion());
+            } else {
+                assertEquals(ByteString.copyFromUtf8("v" + i), entry.getValue());
+                assertEquals(1, entry.getVersion());
+            }
+        }
+    }
+
+    @Test
+    public void compactionMovesLiveRecordsAndDeletesDeadFiles() throws IOException {
+        File dir = folder.newFolder();
+        BitcaskEngine engine = open(dir, 0);
+        for (int i = 0; i < 200; i++) {
+            engine.putIfNewer("k" + i, value("old" + i, 1), IGNORE);
+        }
+        assertTrue(dataFiles(dir) > 1);
+        // overwriting most keys leaves the old files mostly dead
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 != 0) {
+                engine.putIfNewer("k" + i, value("new" + i, 2), IGNORE);
+            }
+        }
+        int written = dataFiles(dir);
+        engine.compact();
+        assertTrue(dataFiles(dir) < written);
+
+        for (BitcaskEngine current : new BitcaskEngine[]{engine, open(dir, 0)}) {
+            assertEquals(200, current.size());
+            for (int i = 0; i < 200; i++) {
+                String expected = i % 10 == 0 ? "old" + i : "new" + i;
+                assertEquals(ByteString.copyFromUtf8(expected), current.get("k" + i).getValue());
+            }
+        }
+    }
+
+    @Test
+    public void valuesReadBeforeCompactionStayValid() throws IOException {
+        File dir = folder.newFolder();
+        BitcaskEngine engine = open(dir, 0);
+        for (int i = 0; i < 200; i++) {
+            engine.putIfNewer("k" + i, value("old" + i, 1), IGNORE);
+        }
+        VersionedValue read = engine.get("k1");
+        for (int i = 0; i < 200; i++) {
+            engine.putIfNewer("k" + i, value("new" + i, 2), IGNORE);
+        }
+        engine.compact();
+        assertEquals(ByteString.copyFromUtf8("old1"), read.getValue());
+    }
+
+    @Test
+    public void compactionDropsExpiredTombstonesWithoutResurrectingValues() throws IOException {
+        File dir = folder.newFolder();
+        BitcaskEngine engine = open(dir, 1);
+        long old = versionAt(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        for (int i = 0; i < 100; i++) {
+            engine.putIfNewer("k" + i, value("v" + i, old), IGNORE);
+        }
+        for (int i = 0; i < 100; i++) {
+            engine.putIfNewer("k" + i, VersionedValue.tombstone(old + 1), IGNORE);
+        }
+        long now = versionAt(System.currentTimeMillis());
+        for (int i = 0; i < 300; i++) {
+            engine.putIfNewer("f" + i, value("filler" + i, now), IGNORE);
+        }
+        for (int round = 0; round < 10; round++) {
+            engine.compact();
+        }
+        assertTrue("expired tombstones should have been dropped", engine.size() < 400);
+
+        engine = open(dir, 1);
+        for (int i = 0; i < 100; i++) {
+            VersionedValue entry = engine.get("k" + i);
+            assertTrue(entry == null || entry.isDeleted());
+        }
+        for (int i = 0; i < 300; i++) {
+            assertEquals(ByteString.copyFromUtf8("filler" + i), engine.get("f" + i).getValue());
+        }
+    }
+
+    @Test
+    public void recentTombstonesAreKept() throws IOException {
+        File dir = folder.newFolder();
+        BitcaskEngine engine = open(dir, 3600);
+        long now = versionAt(System.currentTimeMillis());
+        for (int i = 0; i < 100; i++) {
+            engine.putIfNewer("k" + i, value("v" + i, now), IGNORE);
+        }
+        for (int i = 0; i < 100; i++) {
+            engine.putIfNewer("k" + i, VersionedValue.tombstone(now + 1), IGNORE);
+        }
+        for (int i = 0; i < 300; i++) {
+            engine.putIfNewer("f" + i, value("filler" + i, now), IGNORE);
+        }
+        engine.compact();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(engine.get("k" + i).isDeleted());
+        }
+    }
+}
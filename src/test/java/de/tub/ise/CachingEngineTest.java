@@ -0,0 +1,135 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+public class CachingEngineTest {
+
+    private static final Memory.ChangeListener IGNORE = (key, before, after) -> { };
+
+    /**
+     * Heap engine standing in for the disk, counting the reads that reach it
+     */
+    private static class CountingEngine implements StorageEngine {
+        private final HashMapEngine store = new HashMapEngine();
+        private final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public VersionedValue get(String key) {
+            reads.incrementAndGet();
+            return store.get(key);
+        }
+
+        @Override
+        public boolean putIfNewer(String key, VersionedValue update, Memory.ChangeListener changed) {
+            return store.putIfNewer(key, update, changed);
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, VersionedValue> action) {
+            store.forEach(action);
+        }
+
+        @Override
+        public long size() {
+            return store.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static VersionedValue value(int size, long version) {
+        return VersionedValue.of(ByteString.copyFrom(new byte[size]), version);
+    }
+
+    @Test
+    public void repeatedReadsAreServedFromTheCache() {
+        CountingEngine disk = new CountingEngine();
+        CachingEngine cache = new CachingEngine(disk, 1 << 20);
+        cache.putIfNewer("k", value(100, 1), IGNORE);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, cache.get("k").getVersion());
+        }
+        assertEquals(1, disk.reads.get());
+        // misses aren't cached, the key may be written any time
+        assertNull(cache.get("unknown"));
+        assertNull(cache.get("unknown"));
+        assertEquals(3, disk.reads.get());
+    }
+
+    @Test
+    public void writesUpdateCachedEntries() {
+        CountingEngine disk = new CountingEngine();
+        CachingEngine cache = new CachingEngine(disk, 1 << 20);
+        cache.putIfNewer("k", value(100, 1), IGNORE);
+        cache.get("k");
+        cache.putIfNewer("k", value(200, 2), IGNORE);
+        assertEquals(200, cache.get("k").getValue().size());
+        cache.putIfNewer("k", VersionedValue.tombstone(3), IGNORE);
+        assertTrue(cache.get("k").isDeleted());
+        // an older write changes neither the disk nor the cache
+        cache.putIfNewer("k", value(300, 2), IGNORE);
+        assertTrue(cache.get("k").isDeleted());
+        assertEquals(1, disk.reads.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void aScanDoesNotEvictTheHotEntries() {
+        CountingEngine disk = new CountingEngine();
+        CachingEngine cache = new CachingEngine(disk, 1 << 20);
+        for (int i = 0; i < 1000; i++) {
+            cache.putIfNewer("hot" + i, value(100, 1), IGNORE);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 1000; i++) {
+                cache.get("hot" + i);
+            }
+        }
+        // one-off reads of far more keys than fit into the budget
+        for (int i = 0; i < 50000; i++) {
+            cache.putIfNewer("cold" + i, value(100, 1), IGNORE);
+            cache.get("cold" + i);
+        }
+        int before = disk.reads.get();
+        for (int i = 0; i < 1000; i++) {
+            cache.get("hot" + i);
+        }
+        assertTrue("hot entries were evicted: " + (disk.reads.get() - before), disk.reads.get() - before < 100);
+    }
+
+    @Test
+    public void theBudgetBoundsTheCachedEntries() {
+        CountingEngine disk = new CountingEngine();
+        // about 16 entries of 4 KB
+        CachingEngine cache = new CachingEngine(disk, 16 * 5000);
+        for (int i = 0; i < 1000; i++) {
+            cache.putIfNewer("k" + i, value(4000, 1), IGNORE);
+            cache.get("k" + i);
+        }
+        int before = disk.reads.get();
+        for (int i = 0; i < 1000; i++) {
+            cache.get("k" + i);
+        }
+        assertTrue(disk.reads.get() - before > 950);
+    }
+
+    @Test
+    public void entriesLargerThanAShardAreNotCached() {
+        CountingEngine disk = new CountingEngine();
+        CachingEngine cache = new CachingEngine(disk, 16 * 1024);
+        cache.putIfNewer("big", value(2048, 1), IGNORE);
+        cache.get("big");
+        cache.get("big");
+        assertEquals(2, disk.reads.get());
+    }
+}
@@ -0,0 +1,50 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsAccessesUpToFifteen() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        long key = Hashing.hash("key");
+        assertEquals(0, sketch.frequency(key));
+        for (int i = 1; i <= 20; i++) {
+            sketch.increment(key);
+            assertEquals(Math.min(i, 15), sketch.frequency(key));
+        }
+    }
+
+    @Test
+    public void otherKeysAreRarelyOverestimated() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 500; i++) {
+            sketch.increment(Hashing.hash("seen" + i));
+        }
+        int overestimated = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sketch.frequency(Hashing.hash("unseen" + i)) > 0) {
+                overestimated++;
+            }
+        }
+        assertTrue(overestimated < 100);
+    }
+
+    @Test
+    public void agingHalvesTheCounters() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        long hot = Hashing.hash("hot");
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(hot);
+        }
+        assertEquals(10, sketch.frequency(hot));
+        // enough other accesses to trigger the reset (ten per counter)
+        for (int i = 0; i < 2000; i++) {
+            sketch.increment(Hashing.hash("other" + i));
+        }
+        assertTrue(sketch.frequency(hot) < 10);
+    }
+}
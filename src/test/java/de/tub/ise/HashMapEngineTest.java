@@ -0,0 +1,72 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Test;
+
+public class HashMapEngineTest {
+
+    private static final Memory.ChangeListener IGNORE = (key, before, after) -> { };
+
+    private HashMapEngine engine;
+
+    @After
+    public void close() {
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    private static VersionedValue value(String value, long version) {
+        return VersionedValue.of(ByteString.copyFromUtf8(value), version);
+    }
+
+    private static long versionAt(long millis) {
+        // hybrid logical clock timestamp without logical part
+        return millis << 16;
+    }
+
+    @Test
+    public void keepsTheNewestVersion() {
+        engine = new HashMapEngine();
+        assertTrue(engine.putIfNewer("k", value("b", 2), IGNORE));
+        assertFalse(engine.putIfNewer("k", value("a", 1), IGNORE));
+        assertEquals(ByteString.copyFromUtf8("b"), engine.get("k").getValue());
+        assertTrue(engine.putIfNewer("k", VersionedValue.tombstone(3), IGNORE));
+        assertTrue(engine.get("k").isDeleted());
+        assertFalse(engine.putIfNewer("k", value("c", 3), IGNORE));
+        assertEquals(1, engine.size());
+    }
+
+    @Test
+    public void purgeRemovesOnlyExpiredTombstones() {
+        engine = new HashMapEngine(60);
+        long now = System.currentTimeMillis();
+        long old = versionAt(now - TimeUnit.MINUTES.toMillis(10));
+        long recent = versionAt(now);
+        engine.putIfNewer("expired", VersionedValue.tombstone(old), IGNORE);
+        engine.putIfNewer("deleted", VersionedValue.tombstone(recent), IGNORE);
+        engine.putIfNewer("old value", value("v", old), IGNORE);
+
+        engine.purge();
+        assertNull(engine.get("expired"));
+        assertTrue(engine.get("deleted").isDeleted());
+        assertEquals(ByteString.copyFromUtf8("v"), engine.get("old value").getValue());
+        assertEquals(2, engine.size());
+    }
+
+    @Test
+    public void withoutGraceTombstonesStay() {
+        engine = new HashMapEngine(0);
+        engine.putIfNewer("k", VersionedValue.tombstone(versionAt(1)), IGNORE);
+        engine.purge();
+        assertTrue(engine.get("k").isDeleted());
+    }
+}
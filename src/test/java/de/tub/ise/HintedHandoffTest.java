@@ -0,0 +1,145 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HintedHandoffTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, Long> replayed = new ConcurrentHashMap<>();
+    private final List<Long> batches = new CopyOnWriteArrayList<>();
+    private Server server;
+    private ManagedChannel channel;
+
+    /**
+     * Recovered peer that accepts every replayed hint
+     */
+    private class Peer extends KeyValueStoreGrpc.KeyValueStoreImplBase {
+        @Override
+        public void replicateBatch(KeyValueBatch request, StreamObserver<BatchResponse> responseObserver) {
+            batches.add(System.nanoTime());
+            assertTrue(request.getPairsCount() <= 100);
+            BatchResponse.Builder response = BatchResponse.newBuilder();
+            for (KeyValuePair pair : request.getPairsList()) {
+                replayed.put(pair.getKey(), pair.getVersion());
+                response.addResponses(Response.newBuilder().setSuccess(true).setKey(pair.getKey()));
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    @Before
+    public void start() throws IOException {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(new Peer()).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @After
+    public void stop() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    private HintedHandoff handoff(File dir, double rate) {
+        return new HintedHandoff(Collections.singletonMap("peer", channel), 10000, dir, rate, 5000);
+    }
+
+    private static KeyValuePair write(int i, long version) {
+        return KeyValuePair.newBuilder().setKey("k" + i).setValue(ByteString.copyFromUtf8("v" + i))
+                .setVersion(version).build();
+    }
+
+    @Test
+    public void replaysAllHintsInPacedBatches() throws InterruptedException {
+        HintedHandoff handoff = handoff(null, 2000);
+        for (int i = 0; i < 1000; i++) {
+            handoff.add("peer", write(i, 1));
+            handoff.add("peer", write(i, 2));
+        }
+        // an older hint never replaces a newer one
+        handoff.add("peer", write(0, 1));
+        assertEquals(1000, handoff.pending("peer"));
+        handoff.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (handoff.pending("peer") > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, handoff.pending("peer"));
+        assertEquals(1000, replayed.size());
+        for (long version : replayed.values()) {
+            assertEquals(2, version);
+        }
+        // all hints go out after one check, the first batch as a burst, the rest at the rate
+        assertTrue(batches.size() >= 10);
+        long elapsed = batches.get(batches.size() - 1) - batches.get(0);
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(elapsed < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void hintsSurviveARestart() throws IOException {
+        File dir = folder.newFolder();
+        HintedHandoff handoff = handoff(dir, 100);
+        for (int i = 0; i < 10; i++) {
+            handoff.add("peer", write(i, 1));
+        }
+        handoff.add("peer", write(3, 2));
+        assertEquals(10, handoff(dir, 100).pending("peer"));
+    }
+
+    /**
+     * Hint directory with three hints followed by a record of the given length
+     */
+    private File withTornRecord(int length) throws IOException {
+        File dir = folder.newFolder();
+        HintedHandoff handoff = handoff(dir, 100);
+        for (int i = 0; i < 3; i++) {
+            handoff.add("peer", write(i, 1));
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "hints-peer.log"),
+                true))) {
+            out.writeInt(length);
+            out.write(new byte[10]);
+        }
+        return dir;
+    }
+
+    @Test
+    public void oversizedLengthEndsTheHintFile() throws IOException {
+        assertEquals(3, handoff(withTornRecord(Integer.MAX_VALUE), 100).pending("peer"));
+        assertEquals(3, handoff(withTornRecord(11), 100).pending("peer"));
+    }
+
+    @Test
+    public void negativeLengthEndsTheHintFile() throws IOException {
+        assertEquals(3, handoff(withTornRecord(-5), 100).pending("peer"));
+    }
+}
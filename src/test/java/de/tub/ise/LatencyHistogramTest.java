@@ -0,0 +1,98 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private static void assertClose(long expected, long actual) {
+        // one bucket is 1/32 of its power of two wide
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 32 + 1);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 1; v <= 50; v++) {
+            histogram.record(v);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(25, snapshot.percentile(50));
+        assertEquals(45, snapshot.percentile(90));
+        assertEquals(50, snapshot.percentile(100));
+        assertEquals(1, snapshot.percentile(0));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 1000000; v++) {
+            histogram.record(v * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000000, snapshot.getCount());
+        assertEquals(1000000000L, snapshot.getMax());
+        assertEquals(500000500.0, snapshot.getMean(), 1);
+        assertClose(500000000L, snapshot.percentile(50));
+        assertClose(990000000L, snapshot.percentile(99));
+        assertClose(999000000L, snapshot.percentile(99.9));
+        assertEquals(1000000000L, snapshot.percentile(100));
+    }
+
+    @Test
+    public void percentilesNeverExceedTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000001);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000001, snapshot.percentile(50));
+        assertEquals(1000001, snapshot.percentile(99.99));
+        assertTrue(snapshot.getStdDev() < 1000001 / 32);
+    }
+
+    @Test
+    public void extremeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.percentile(50));
+        assertEquals(Long.MAX_VALUE, snapshot.percentile(100));
+    }
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.percentile(99));
+        assertEquals(0.0, snapshot.getMean(), 0);
+        assertEquals(0.0, snapshot.getStdDev(), 0);
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(99999, snapshot.getMax());
+    }
+}
@@ -0,0 +1,110 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+public class MerkleTreeTest {
+
+    private static final int DEPTH = 10;
+
+    private static VersionedValue value(String value, long version) {
+        return VersionedValue.of(ByteString.copyFromUtf8(value), version);
+    }
+
+    private static MerkleTree tree(int keys) {
+        MerkleTree tree = new MerkleTree(DEPTH);
+        for (int i = 0; i < keys; i++) {
+            tree.update("k" + i, null, value("v" + i, 1));
+        }
+        return tree;
+    }
+
+    /**
+     * Leaves in which the trees differ, found by descending from the root into the
+     * differing children only, the way anti-entropy compares two replicas
+     */
+    private static List<Integer> differingLeaves(MerkleTree a, MerkleTree b) {
+        List<Integer> leaves = new ArrayList<>();
+        List<Integer> nodes = new ArrayList<>(Collections.singletonList(MerkleTree.ROOT));
+        while (!nodes.isEmpty()) {
+            int node = nodes.remove(nodes.size() - 1);
+            if (a.hash(node) == b.hash(node)) {
+                continue;
+            }
+            if (a.isLeaf(node)) {
+                leaves.add(node);
+            } else {
+                nodes.add(2 * node);
+                nodes.add(2 * node + 1);
+            }
+        }
+        return leaves;
+    }
+
+    @Test
+    public void sameEntriesInAnyOrderGiveTheSameTree() {
+        MerkleTree forward = tree(1000);
+        MerkleTree backward = new MerkleTree(DEPTH);
+        for (int i = 999; i >= 0; i--) {
+            backward.update("k" + i, null, value("v" + i, 1));
+        }
+        assertEquals(forward.hash(MerkleTree.ROOT), backward.hash(MerkleTree.ROOT));
+        assertEquals(Collections.emptyList(), differingLeaves(forward, backward));
+    }
+
+    @Test
+    public void aDifferingKeyIsFoundInItsLeaf() {
+        MerkleTree a = tree(1000);
+        MerkleTree b = tree(1000);
+        b.update("k42", value("v42", 1), value("changed", 2));
+        assertNotEquals(a.hash(MerkleTree.ROOT), b.hash(MerkleTree.ROOT));
+        assertEquals(Collections.singletonList(a.leafOf("k42")), differingLeaves(a, b));
+    }
+
+    @Test
+    public void versionsAndTombstonesCount() {
+        MerkleTree a = tree(10);
+        MerkleTree newer = tree(10);
+        newer.update("k1", value("v1", 1), value("v1", 2));
+        assertEquals(Collections.singletonList(a.leafOf("k1")), differingLeaves(a, newer));
+        MerkleTree deleted = tree(10);
+        deleted.update("k1", value("v1", 1), VersionedValue.tombstone(1));
+        assertEquals(Collections.singletonList(a.leafOf("k1")), differingLeaves(a, deleted));
+    }
+
+    @Test
+    public void undoingAChangeRestoresTheHash() {
+        MerkleTree tree = tree(100);
+        long root = tree.hash(MerkleTree.ROOT);
+        tree.update("extra", null, value("x", 1));
+        assertNotEquals(root, tree.hash(MerkleTree.ROOT));
+        tree.update("extra", value("x", 1), null);
+        assertEquals(root, tree.hash(MerkleTree.ROOT));
+        assertEquals(0, new MerkleTree(DEPTH).hash(new MerkleTree(DEPTH).firstLeaf()));
+    }
+
+    @Test
+    public void leavesCoverTheKeySpace() {
+        MerkleTree tree = new MerkleTree(DEPTH);
+        for (int i = 0; i < 10000; i++) {
+            int leaf = tree.leafOf("k" + i);
+            assertTrue(leaf >= tree.firstLeaf() && leaf <= tree.lastLeaf());
+            assertTrue(tree.isLeaf(leaf));
+        }
+        assertFalse(tree.isLeaf(tree.firstLeaf() - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownNodes() {
+        new MerkleTree(DEPTH).hash(1 << (DEPTH + 1));
+    }
+}
@@ -0,0 +1,109 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+public class OffHeapEngineTest {
+
+    private static final Memory.ChangeListener IGNORE = (key, before, after) -> { };
+
+    private static VersionedValue value(int size, int seed, long version) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return VersionedValue.of(ByteString.copyFrom(bytes), version);
+    }
+
+    @Test
+    public void keepsTheNewestVersion() {
+        OffHeapEngine engine = new OffHeapEngine(16 << 20);
+        assertTrue(engine.putIfNewer("k", value(10, 1, 2), IGNORE));
+        assertFalse(engine.putIfNewer("k", value(10, 2, 1), IGNORE));
+        assertEquals(value(10, 1, 2).getValue(), engine.get("k").getValue());
+        assertTrue(engine.putIfNewer("k", VersionedValue.tombstone(3), IGNORE));
+        assertTrue(engine.get("k").isDeleted());
+        assertEquals(3, engine.get("k").getVersion());
+        assertNull(engine.get("unknown"));
+        assertEquals(1, engine.size());
+    }
+
+    @Test
+    public void reportsTheReplacedEntry() {
+        OffHeapEngine engine = new OffHeapEngine(16 << 20);
+        VersionedValue first = value(10, 1, 1);
+        VersionedValue second = value(20, 2, 2);
+        engine.putIfNewer("k", first, IGNORE);
+        VersionedValue[] seen = new VersionedValue[2];
+        engine.putIfNewer("k", second, (key, before, after) -> {
+            seen[0] = before;
+            seen[1] = after;
+        });
+        assertEquals(first.getValue(), seen[0].getValue());
+        assertSame(second, seen[1]);
+    }
+
+    @Test
+    public void storesValuesOfAllSizeClassesAndHugeOnes() {
+        OffHeapEngine engine = new OffHeapEngine(64 << 20);
+        int[] sizes = {0, 1, 13, 100, 1000, 10000, 60000, 200000};
+        for (int i = 0; i < sizes.length; i++) {
+            engine.putIfNewer("k" + i, value(sizes[i], i, 1), IGNORE);
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(value(sizes[i], i, 1).getValue(), engine.get("k" + i).getValue());
+        }
+        // growing and shrinking moves the entries to other size classes
+        for (int i = 0; i < sizes.length; i++) {
+            engine.putIfNewer("k" + i, value(sizes[sizes.length - 1 - i], i, 2), IGNORE);
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(value(sizes[sizes.length - 1 - i], i, 2).getValue(), engine.get("k" + i).getValue());
+        }
+    }
+
+    @Test
+    public void freedChunksAreReused() {
+        OffHeapEngine engine = new OffHeapEngine(8 << 20);
+        // more than the capacity in total, only possible if replaced chunks are freed
+        for (int version = 1; version <= 200; version++) {
+            for (int i = 0; i < 50; i++) {
+                engine.putIfNewer("k" + i, value(1000, version, version), IGNORE);
+            }
+        }
+        assertEquals(value(1000, 200, 200).getValue(), engine.get("k7").getValue());
+    }
+
+    @Test
+    public void visitsEveryKeyOnceWhileTheIndexGrows() {
+        OffHeapEngine engine = new OffHeapEngine(256 << 20);
+        int keys = 200000;
+        for (int i = 0; i < keys; i++) {
+            engine.putIfNewer("k" + i, VersionedValue.of(ByteString.copyFromUtf8("v" + i), 1), IGNORE);
+        }
+        assertEquals(keys, engine.size());
+        Map<String, ByteString> seen = new HashMap<>();
+        engine.forEach((key, entry) -> assertNull(key, seen.put(key, entry.getValue())));
+        assertEquals(keys, seen.size());
+        for (int i = 0; i < keys; i += 997) {
+            assertEquals(ByteString.copyFromUtf8("v" + i), seen.get("k" + i));
+            assertEquals(ByteString.copyFromUtf8("v" + i), engine.get("k" + i).getValue());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsWhenTheCapacityIsExhausted() {
+        OffHeapEngine engine = new OffHeapEngine(8 << 20);
+        for (int i = 0; i < 100; i++) {
+            engine.putIfNewer("k" + i, value(100000, i, 1), IGNORE);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.Test;
+
+public class PeerSelectorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_DEADLINE = TimeUnit.SECONDS.toNanos(1);
+    private static final List<String> PEERS = Arrays.asList("a", "b", "c");
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final StreamObserver<Response> ignore = new StreamObserver<Response>() {
+        @Override
+        public void onNext(Response value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    };
+
+    private PeerSelector selector() {
+        return new PeerSelector(PEERS, 95, 2, MS, MAX_DEADLINE, now::get);
+    }
+
+    private void answer(PeerSelector selector, String peer, long nanos) {
+        StreamObserver<Response> call = selector.track(peer, ignore);
+        now.addAndGet(nanos);
+        call.onCompleted();
+    }
+
+    private void fail(PeerSelector selector, String peer, long nanos, Status status) {
+        StreamObserver<Response> call = selector.track(peer, ignore);
+        now.addAndGet(nanos);
+        call.onError(status.asRuntimeException());
+    }
+
+    /**
+     * Answers of the peer over a whole window, then one more that closes it
+     */
+    private void window(PeerSelector selector, String peer, long nanos) {
+        for (int i = 0; i < 30; i++) {
+            answer(selector, peer, nanos);
+        }
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        answer(selector, peer, nanos);
+    }
+
+    private static void assertAbout(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 16);
+    }
+
+    @Test
+    public void fasterPeersRankFirst() {
+        PeerSelector selector = selector();
+        assertEquals(PEERS, selector.rank(PEERS));
+        answer(selector, "a", 10 * MS);
+        answer(selector, "b", MS);
+        answer(selector, "c", 5 * MS);
+        assertEquals(Arrays.asList("b", "c", "a"), selector.rank(PEERS));
+    }
+
+    @Test
+    public void busyPeersRankBehindIdleOnes() {
+        PeerSelector selector = selector();
+        answer(selector, "a", MS);
+        answer(selector, "b", 2 * MS);
+        selector.track("a", ignore);
+        selector.track("a", ignore);
+        assertEquals(Arrays.asList("b", "a"), selector.rank(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void slowPeersAreTriedAgainOnceTheirAverageDecayed() {
+        PeerSelector selector = selector();
+        answer(selector, "a", 100 * MS);
+        answer(selector, "b", 10 * MS);
+        assertEquals(Arrays.asList("b", "a"), selector.rank(Arrays.asList("a", "b")));
+        // four half lives later only b has a fresh sample
+        now.addAndGet(TimeUnit.SECONDS.toNanos(4));
+        answer(selector, "b", 10 * MS);
+        assertEquals(Arrays.asList("a", "b"), selector.rank(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void failuresCountAsSlowAnswersButCancellationsDoNot() {
+        PeerSelector selector = selector();
+        fail(selector, "a", MS, Status.UNAVAILABLE);
+        answer(selector, "b", 50 * MS);
+        fail(selector, "c", MS, Status.CANCELLED);
+        assertEquals(Arrays.asList("c", "b", "a"), selector.rank(PEERS));
+    }
+
+    @Test
+    public void deadlinesAndHedgeDelaysFollowTheAnswerTimes() {
+        PeerSelector selector = selector();
+        assertEquals(MAX_DEADLINE, selector.deadlineNanos("a"));
+        assertEquals(-1, selector.hedgeDelayNanos("a"));
+
+        window(selector, "a", 10 * MS);
+        assertAbout(20 * MS, selector.deadlineNanos("a"));
+        assertAbout(10 * MS, selector.hedgeDelayNanos("a"));
+        // the other peers are still unknown
+        assertEquals(MAX_DEADLINE, selector.deadlineNanos("b"));
+
+        // a peer that doesn't answer for long is measured with the longest deadline again
+        now.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        assertEquals(MAX_DEADLINE, selector.deadlineNanos("a"));
+    }
+
+    @Test
+    public void deadlinesGrowWithAPeerThatBecameSlower() {
+        PeerSelector selector = selector();
+        window(selector, "a", 10 * MS);
+        long deadline = selector.deadlineNanos("a");
+        // every call fails on its deadline now
+        for (int i = 0; i < 30; i++) {
+            fail(selector, "a", deadline, Status.DEADLINE_EXCEEDED);
+        }
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        fail(selector, "a", deadline, Status.DEADLINE_EXCEEDED);
+        assertAbout(2 * deadline, selector.deadlineNanos("a"));
+    }
+
+    @Test
+    public void samplesOfAnIncompleteWindowExpire() {
+        PeerSelector selector = selector();
+        for (int i = 0; i < 5; i++) {
+            answer(selector, "a", 500 * MS);
+        }
+        now.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        window(selector, "a", 10 * MS);
+        assertAbout(20 * MS, selector.deadlineNanos("a"));
+    }
+}
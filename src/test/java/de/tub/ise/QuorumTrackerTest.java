@@ -0,0 +1,147 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.Test;
+
+public class QuorumTrackerTest {
+
+    private static final List<String> PEERS = Arrays.asList("a", "b", "c");
+    private static final long NO_TIMEOUT = TimeUnit.MINUTES.toNanos(1);
+    private static final Response OK = Response.newBuilder().setSuccess(true).build();
+    private static final Response REJECTED = Response.newBuilder().setSuccess(false).build();
+
+    private final List<Boolean> decisions = new CopyOnWriteArrayList<>();
+
+    private QuorumTracker tracker(int required, long timeoutNanos) {
+        return new QuorumTracker("test", required, PEERS, timeoutNanos, Response::getSuccess,
+                (tracker, reached) -> decisions.add(reached));
+    }
+
+    private static void answer(QuorumTracker tracker, String peer, Response response) {
+        tracker.observer(peer).onNext(response);
+    }
+
+    @Test
+    public void reachedOnceAfterTheRequiredSuccesses() {
+        QuorumTracker tracker = tracker(2, NO_TIMEOUT);
+        tracker.start();
+        answer(tracker, "a", OK);
+        assertFalse(tracker.isDecided());
+        answer(tracker, "b", OK);
+        assertTrue(tracker.isDecided());
+        answer(tracker, "c", OK);
+        assertEquals(Collections.singletonList(true), decisions);
+        assertTrue(tracker.fastPeers().containsAll(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void laterAnswersAreSlowPeers() {
+        QuorumTracker tracker = tracker(1, NO_TIMEOUT);
+        tracker.start();
+        answer(tracker, "b", OK);
+        assertEquals(Collections.singletonList("b"), tracker.fastPeers());
+        assertEquals(Arrays.asList("a", "c"), tracker.slowPeers());
+        assertTrue(tracker.settled("b"));
+        assertFalse(tracker.settled("a"));
+    }
+
+    @Test
+    public void missedAsSoonAsTheQuorumIsImpossible() {
+        QuorumTracker tracker = tracker(2, NO_TIMEOUT);
+        tracker.start();
+        tracker.observer("a").onError(Status.UNAVAILABLE.asRuntimeException());
+        assertFalse(tracker.isDecided());
+        tracker.observer("b").onError(Status.UNAVAILABLE.asRuntimeException());
+        assertEquals(Collections.singletonList(false), decisions);
+        answer(tracker, "c", OK);
+        assertEquals(Collections.singletonList(false), decisions);
+    }
+
+    @Test
+    public void rejectedAnswersCountAsFailures() {
+        QuorumTracker tracker = tracker(2, NO_TIMEOUT);
+        tracker.start();
+        answer(tracker, "a", REJECTED);
+        assertFalse(tracker.settled("a"));
+        tracker.observer("a").onCompleted();
+        assertTrue(tracker.settled("a"));
+        tracker.observer("b").onCompleted();
+        assertEquals(Collections.singletonList(false), decisions);
+        assertEquals(REJECTED, tracker.responses().get("a"));
+        assertEquals(1, tracker.responses().size());
+    }
+
+    @Test
+    public void completionAfterAnAcceptedAnswerStaysSuccessful() {
+        QuorumTracker tracker = tracker(3, NO_TIMEOUT);
+        tracker.start();
+        for (String peer : PEERS) {
+            StreamObserver<Response> observer = tracker.observer(peer);
+            observer.onNext(OK);
+            observer.onCompleted();
+        }
+        assertEquals(Collections.singletonList(true), decisions);
+    }
+
+    @Test
+    public void cancelledCallsCountAsFailures() {
+        QuorumTracker tracker = tracker(3, NO_TIMEOUT);
+        tracker.start();
+        answer(tracker, "a", OK);
+        tracker.observer("b").onError(Status.CANCELLED.asRuntimeException());
+        assertTrue(tracker.settled("b"));
+        assertEquals(Collections.singletonList(false), decisions);
+    }
+
+    @Test
+    public void missedWhenTheTimerFires() throws InterruptedException {
+        CountDownLatch decided = new CountDownLatch(1);
+        QuorumTracker tracker = new QuorumTracker("test", 2, PEERS, TimeUnit.MILLISECONDS.toNanos(50),
+                Response::getSuccess, (t, reached) -> {
+                    decisions.add(reached);
+                    decided.countDown();
+                });
+        tracker.start();
+        answer(tracker, "a", OK);
+        assertTrue(decided.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(false), decisions);
+        answer(tracker, "b", OK);
+        assertEquals(Collections.singletonList(false), decisions);
+        assertEquals(Collections.singletonList("a"), tracker.fastPeers());
+        assertEquals(Arrays.asList("b", "c"), tracker.slowPeers());
+    }
+
+    @Test
+    public void nothingRequiredIsReachedOnStart() {
+        QuorumTracker tracker = tracker(0, NO_TIMEOUT);
+        assertFalse(tracker.isDecided());
+        tracker.start();
+        assertEquals(Collections.singletonList(true), decisions);
+    }
+
+    @Test
+    public void delayedActionsOnlyRunWhileUndecided() throws InterruptedException {
+        QuorumTracker tracker = tracker(1, NO_TIMEOUT);
+        tracker.start();
+        CountDownLatch ran = new CountDownLatch(1);
+        tracker.after(TimeUnit.MILLISECONDS.toNanos(10), ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+        answer(tracker, "a", OK);
+        CountDownLatch skipped = new CountDownLatch(1);
+        tracker.after(TimeUnit.MILLISECONDS.toNanos(10), skipped::countDown);
+        assertFalse(skipped.await(200, TimeUnit.MILLISECONDS));
+    }
+}
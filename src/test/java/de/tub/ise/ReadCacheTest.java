@@ -0,0 +1,86 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+public class ReadCacheTest {
+
+    private static final long LEASE_MILLIS = 60000;
+    private static final VersionedValue VALUE = VersionedValue.of(ByteString.copyFromUtf8("v"), 1);
+
+    /**
+     * Reads the key often enough to count as hot, then caches a read result
+     */
+    private static void cacheHot(ReadCache cache, String key, VersionedValue value) {
+        for (int i = 0; i < 3; i++) {
+            cache.get(key);
+        }
+        cache.put(key, value, cache.stamp(key));
+    }
+
+    @Test
+    public void onlyHotKeysAreCached() {
+        ReadCache cache = new ReadCache(LEASE_MILLIS, 100);
+        cache.get("cold");
+        cache.put("cold", VALUE, cache.stamp("cold"));
+        assertNull(cache.get("cold"));
+
+        cacheHot(cache, "hot", VALUE);
+        assertSame(VALUE, cache.get("hot"));
+    }
+
+    @Test
+    public void entriesExpireWithTheLease() throws InterruptedException {
+        ReadCache cache = new ReadCache(50, 100);
+        cacheHot(cache, "k", VALUE);
+        assertSame(VALUE, cache.get("k"));
+        Thread.sleep(100);
+        assertNull(cache.get("k"));
+    }
+
+    @Test
+    public void aChangeOfTheKeyDropsTheEntry() {
+        ReadCache cache = new ReadCache(LEASE_MILLIS, 100);
+        cacheHot(cache, "k", VALUE);
+        cacheHot(cache, "other", VALUE);
+        cache.changed("k", VALUE, VersionedValue.tombstone(2));
+        assertNull(cache.get("k"));
+        assertSame(VALUE, cache.get("other"));
+    }
+
+    @Test
+    public void writesToTheLocalStoreInvalidate() {
+        ReadCache cache = new ReadCache(LEASE_MILLIS, 100);
+        String key = "readcache-" + System.nanoTime();
+        cacheHot(cache, key, VALUE);
+        Memory.put(key, ByteString.copyFromUtf8("newer"), 2);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void aReadThatRacedWithAWriteIsNotCached() {
+        ReadCache cache = new ReadCache(LEASE_MILLIS, 100);
+        for (int i = 0; i < 3; i++) {
+            cache.get("k");
+        }
+        long stamp = cache.stamp("k");
+        // the write lands while the quorum read is in flight
+        cache.changed("k", VALUE, VersionedValue.tombstone(2));
+        cache.put("k", VALUE, stamp);
+        assertNull(cache.get("k"));
+    }
+
+    @Test
+    public void theNumberOfKeysIsBounded() {
+        ReadCache cache = new ReadCache(LEASE_MILLIS, 2);
+        cacheHot(cache, "a", VALUE);
+        cacheHot(cache, "b", VALUE);
+        cacheHot(cache, "c", VALUE);
+        assertSame(VALUE, cache.get("a"));
+        assertSame(VALUE, cache.get("b"));
+        assertNull(cache.get("c"));
+    }
+}
@@ -0,0 +1,196 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplicationStreamTest {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private final BlockingQueue<ReplicationEntry> received = new LinkedBlockingQueue<>();
+    private final BlockingQueue<StreamObserver<ReplicationAck>> streams = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> answers = new LinkedBlockingQueue<>();
+    private Server server;
+    private ManagedChannel channel;
+
+    /**
+     * Peer that records the entries it receives; the test acknowledges them
+     */
+    private class Peer extends KeyValueStoreGrpc.KeyValueStoreImplBase {
+        @Override
+        public StreamObserver<ReplicationFrame> replicateStream(StreamObserver<ReplicationAck> acks) {
+            streams.add(acks);
+            return new StreamObserver<ReplicationFrame>() {
+                @Override
+                public void onNext(ReplicationFrame frame) {
+                    received.addAll(frame.getEntriesList());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            };
+        }
+    }
+
+    @Before
+    public void start() throws IOException {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(new Peer()).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @After
+    public void stop() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    private ReplicationStream stream(long timeoutNanos) {
+        return new ReplicationStream("node", "peer", KeyValueStoreGrpc.newStub(channel), 1000, timeoutNanos);
+    }
+
+    private static KeyValuePair write(int i) {
+        return KeyValuePair.newBuilder().setKey("k" + i).setValue(ByteString.copyFromUtf8("v" + i)).setVersion(1)
+                .build();
+    }
+
+    /**
+     * Observer that records the outcome of the write of key k{@code i} as "k{@code i} OK"
+     * or "k{@code i} <status code>"
+     */
+    private StreamObserver<Response> answer(int i) {
+        return new StreamObserver<Response>() {
+            @Override
+            public void onNext(Response response) {
+                assertEquals("k" + i, response.getKey());
+                answers.add("k" + i + " " + (response.getSuccess() ? "OK" : "FAILED"));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                answers.add("k" + i + " " + Status.fromThrowable(t).getCode());
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+
+    private List<ReplicationEntry> receive(int count) throws InterruptedException {
+        List<ReplicationEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ReplicationEntry entry = received.poll(5, TimeUnit.SECONDS);
+            if (entry == null) {
+                throw new AssertionError("Received " + entries.size() + " of " + count + " entries");
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private void expectAnswers(String... expected) throws InterruptedException {
+        for (String answer : expected) {
+            assertEquals(answer, answers.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void ack(StreamObserver<ReplicationAck> acks, long sequence) {
+        acks.onNext(ReplicationAck.newBuilder().setSequence(sequence).build());
+    }
+
+    @Test
+    public void sequenceNumbersFollowTheOrderOnTheStream() throws InterruptedException {
+        ReplicationStream stream = stream(TIMEOUT);
+        for (int i = 0; i < 50; i++) {
+            stream.send(write(i), answer(i));
+        }
+        List<ReplicationEntry> entries = receive(50);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i + 1, entries.get(i).getSequence());
+            assertEquals(write(i), entries.get(i).getPair());
+        }
+        assertEquals(1, streams.size());
+    }
+
+    @Test
+    public void writesAreAnsweredOnlyOnceAcknowledgedInOrder() throws InterruptedException {
+        ReplicationStream stream = stream(TIMEOUT);
+        for (int i = 0; i < 5; i++) {
+            stream.send(write(i), answer(i));
+        }
+        receive(5);
+        StreamObserver<ReplicationAck> acks = streams.take();
+        assertNull(answers.poll(100, TimeUnit.MILLISECONDS));
+
+        ack(acks, 3);
+        expectAnswers("k0 OK", "k1 OK", "k2 OK");
+        assertNull(answers.poll(100, TimeUnit.MILLISECONDS));
+
+        // a repeated acknowledgement answers nothing twice
+        ack(acks, 3);
+        ack(acks, 5);
+        expectAnswers("k3 OK", "k4 OK");
+        assertNull(answers.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void brokenStreamFailsTheUnacknowledgedWrites() throws InterruptedException {
+        ReplicationStream stream = stream(TIMEOUT);
+        for (int i = 0; i < 3; i++) {
+            stream.send(write(i), answer(i));
+        }
+        receive(3);
+        StreamObserver<ReplicationAck> acks = streams.take();
+        ack(acks, 1);
+        expectAnswers("k0 OK");
+
+        acks.onError(Status.INTERNAL.asRuntimeException());
+        expectAnswers("k1 UNAVAILABLE", "k2 UNAVAILABLE");
+
+        // the next write opens a new stream, numbered on from the old one
+        stream.send(write(3), answer(3));
+        ReplicationEntry entry = receive(1).get(0);
+        assertEquals(4, entry.getSequence());
+        ack(streams.poll(5, TimeUnit.SECONDS), 4);
+        expectAnswers("k3 OK");
+    }
+
+    @Test
+    public void unacknowledgedWritesTimeOut() throws InterruptedException {
+        ReplicationStream stream = stream(TimeUnit.MILLISECONDS.toNanos(100));
+        stream.send(write(0), answer(0));
+        stream.send(write(1), answer(1));
+        receive(2);
+        expectAnswers("k0 UNAVAILABLE", "k1 UNAVAILABLE");
+
+        stream.send(write(2), answer(2));
+        receive(1);
+        streams.take();
+        ack(streams.poll(5, TimeUnit.SECONDS), 3);
+        expectAnswers("k2 OK");
+    }
+}
@@ -0,0 +1,88 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TokenRingTest {
+
+    private static final List<String> NODES = Arrays.asList("n1", "n2", "n3", "n4", "n5");
+
+    @Test
+    public void preferenceListsHoldDistinctNodes() {
+        TokenRing ring = new TokenRing(NODES, 64, 3);
+        for (int i = 0; i < 1000; i++) {
+            List<String> replicas = ring.preferenceList("key" + i);
+            assertEquals(3, replicas.size());
+            assertEquals(3, new HashSet<>(replicas).size());
+            for (String node : NODES) {
+                assertEquals(replicas.contains(node), ring.isReplica(node, "key" + i));
+            }
+        }
+    }
+
+    @Test
+    public void allNodesAgreeOnThePlacement() {
+        TokenRing ring = new TokenRing(NODES, 64, 3);
+        TokenRing reordered = new TokenRing(Arrays.asList("n5", "n3", "n1", "n4", "n2"), 64, 3);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.preferenceList("key" + i), reordered.preferenceList("key" + i));
+        }
+    }
+
+    @Test
+    public void keysAreSpreadOverTheNodes() {
+        TokenRing ring = new TokenRing(NODES, 64, 1);
+        Map<String, Integer> owned = new HashMap<>();
+        int keys = 50000;
+        for (int i = 0; i < keys; i++) {
+            owned.merge(ring.preferenceList("key" + i).get(0), 1, Integer::sum);
+        }
+        assertEquals(NODES.size(), owned.size());
+        for (int count : owned.values()) {
+            // a fifth each, give or take the variance of 64 tokens per node
+            assertTrue(count > keys / 10 && count < keys * 3 / 10);
+        }
+    }
+
+    @Test
+    public void aNewNodeOnlyTakesOverKeys() {
+        TokenRing before = new TokenRing(NODES.subList(0, 4), 64, 1);
+        TokenRing after = new TokenRing(NODES, 64, 1);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String owner = before.preferenceList("key" + i).get(0);
+            String newOwner = after.preferenceList("key" + i).get(0);
+            if (!owner.equals(newOwner)) {
+                assertEquals("n5", newOwner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0 && moved < 10000 * 3 / 10);
+    }
+
+    @Test
+    public void replicationToAllNodes() {
+        TokenRing ring = new TokenRing(NODES, 1, NODES.size());
+        assertEquals(new HashSet<>(NODES), new HashSet<>(ring.preferenceList("key")));
+        assertFalse(new TokenRing(NODES, 1, 1).preferenceList("key").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRingsWithoutTokens() {
+        new TokenRing(NODES, 0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreReplicasThanNodes() {
+        new TokenRing(NODES, 64, 6);
+    }
+}
@@ -0,0 +1,111 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+public class ValueCodecTest {
+
+    private static final int MAX = 1 << 20;
+
+    private static ByteString compressible(int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'a');
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static ByteString random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static ByteString bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static void assertRejected(ByteString stored, int maxBytes) {
+        try {
+            ValueCodec.decode(stored, maxBytes);
+            fail("Decoded a corrupt value");
+        } catch (DataFormatException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void roundTripsValuesWithAndWithoutCompression() throws DataFormatException {
+        ByteString[] values = {ByteString.EMPTY, ByteString.copyFromUtf8("short"), compressible(10000),
+                random(10000), bytes(0xFF), bytes(0xFF, 0x00, 1, 2), bytes(0xFF, 0x01, 0, 0, 0, 9)};
+        for (int threshold : new int[]{0, 1, 256}) {
+            for (ByteString value : values) {
+                assertEquals(value, ValueCodec.decode(ValueCodec.encode(value, threshold), MAX));
+            }
+        }
+    }
+
+    @Test
+    public void compressesOnlyFromTheThresholdAndOnlyIfSmaller() {
+        ByteString value = compressible(10000);
+        assertTrue(ValueCodec.encode(value, 256).size() < 1000);
+        assertSame(value, ValueCodec.encode(value, 0));
+        assertSame(value, ValueCodec.encode(value, 10001));
+        ByteString incompressible = random(10000);
+        assertSame(incompressible, ValueCodec.encode(incompressible, 256));
+    }
+
+    @Test
+    public void valuesStartingWithTheMarkerAreEscaped() throws DataFormatException {
+        ByteString value = bytes(0xFF, 0x01, 0, 0, 0, 9);
+        ByteString stored = ValueCodec.encode(value, 0);
+        assertNotEquals(value, stored);
+        assertEquals(value, ValueCodec.decode(stored, MAX));
+        ByteString plain = ByteString.copyFromUtf8("plain");
+        assertSame(plain, ValueCodec.encode(plain, 0));
+        assertSame(plain, ValueCodec.decode(plain, MAX));
+    }
+
+    @Test
+    public void migratedLegacyValuesDecodeToThemselves() throws DataFormatException {
+        ByteString[] legacy = {ByteString.EMPTY, ByteString.copyFromUtf8("legacy"), bytes(0xFF),
+                bytes(0xFF, 0x00, 'x'), bytes(0xFF, 0x01, 0x7F, 0xFF, 0xFF, 0xFF), bytes(0xFF, 0x42)};
+        for (ByteString value : legacy) {
+            assertEquals(value, ValueCodec.decode(ValueCodec.migrate(value), MAX));
+        }
+    }
+
+    @Test
+    public void corruptValuesAreRejected() {
+        // unknown codec
+        assertRejected(bytes(0xFF, 0x42, 1), MAX);
+        // truncated headers
+        assertRejected(bytes(0xFF), MAX);
+        assertRejected(bytes(0xFF, 0x01, 0, 0), MAX);
+        // lengths beyond the maximum or negative, rejected before allocating
+        assertRejected(bytes(0xFF, 0x01, 0x7F, 0xFF, 0xFF, 0xFF, 0), MAX);
+        assertRejected(bytes(0xFF, 0x01, 0x80, 0, 0, 0, 0), MAX);
+        // compressed data cut short
+        ByteString stored = ValueCodec.encode(random(5000).concat(compressible(5000)), 256);
+        assertRejected(stored.substring(0, stored.size() / 2), MAX);
+    }
+
+    @Test
+    public void decompressedSizeIsBounded() throws DataFormatException {
+        ByteString stored = ValueCodec.encode(compressible(10000), 256);
+        assertEquals(10000, ValueCodec.decode(stored, 10000).size());
+        assertRejected(stored, 9999);
+    }
+}
@@ -0,0 +1,101 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+public class VersionedValueTest {
+
+    private static VersionedValue value(String value, long version) {
+        return VersionedValue.of(ByteString.copyFromUtf8(value), version);
+    }
+
+    @Test
+    public void largerVersionWins() {
+        assertTrue(value("a", 2).newerThan(value("b", 1)));
+        assertFalse(value("b", 1).newerThan(value("a", 2)));
+        assertTrue(value("a", 1).newerThan(null));
+        assertTrue(VersionedValue.tombstone(2).newerThan(value("a", 1)));
+        assertFalse(VersionedValue.tombstone(1).newerThan(value("a", 2)));
+        assertTrue(value("a", 3).newerThan(VersionedValue.tombstone(2)));
+    }
+
+    @Test
+    public void equalVersionsHaveOneWinner() {
+        VersionedValue a = value("a", 5);
+        VersionedValue b = value("b", 5);
+        VersionedValue deleted = VersionedValue.tombstone(5);
+        assertTrue(b.newerThan(a));
+        assertFalse(a.newerThan(b));
+        // a delete wins over a write with the same version
+        assertTrue(deleted.newerThan(b));
+        assertFalse(b.newerThan(deleted));
+        // the same entry again is not newer, so applying it twice changes nothing
+        assertFalse(value("a", 5).newerThan(a));
+        assertFalse(VersionedValue.tombstone(5).newerThan(deleted));
+    }
+
+    @Test
+    public void valuesAreComparedUnsigned() {
+        VersionedValue high = VersionedValue.of(ByteString.copyFrom(new byte[]{(byte) 0x80}), 1);
+        VersionedValue low = VersionedValue.of(ByteString.copyFrom(new byte[]{0x7F}), 1);
+        assertTrue(high.newerThan(low));
+        assertFalse(low.newerThan(high));
+    }
+
+    @Test
+    public void clockIsStrictlyIncreasing() {
+        HybridClock clock = new HybridClock();
+        Set<Long> seen = new HashSet<>();
+        long previous = 0;
+        for (int i = 0; i < 100000; i++) {
+            long now = clock.now();
+            assertTrue(now > previous);
+            assertTrue(seen.add(now));
+            previous = now;
+        }
+    }
+
+    @Test
+    public void recordsCarryTheStoredEncoding() {
+        KeyValuePair record = value("a", 7).toKeyValuePair("k");
+        assertEquals("k", record.getKey());
+        assertEquals(ByteString.copyFromUtf8("a"), record.getValue());
+        assertEquals(7, record.getVersion());
+        assertEquals(ValueCodec.FORMAT, record.getFormat());
+        assertFalse(record.getDeleted());
+
+        KeyValuePair tombstone = VersionedValue.tombstone(8).toKeyValuePair("k");
+        assertTrue(tombstone.getDeleted());
+        assertEquals(8, tombstone.getVersion());
+        assertEquals(ValueCodec.FORMAT, tombstone.getFormat());
+    }
+
+    @Test
+    public void clockFollowsTheWallClock() {
+        long before = System.currentTimeMillis();
+        long millis = HybridClock.millis(new HybridClock().now());
+        assertTrue(millis >= before && millis <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void clockOrdersAfterRemoteTimestamps() {
+        HybridClock clock = new HybridClock();
+        // a peer whose clock is an hour ahead
+        long remote = (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)) << 16;
+        clock.update(remote);
+        assertTrue(clock.now() > remote);
+        // an older remote timestamp doesn't move the clock back
+        long next = clock.now();
+        clock.update(1);
+        assertTrue(clock.now() > next);
+        assertEquals(HybridClock.millis(remote), HybridClock.millis(clock.now()));
+    }
+}
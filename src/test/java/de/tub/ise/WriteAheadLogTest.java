@@ -0,0 +1,159 @@
+package de.tub.ise;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static KeyValuePair record(int i) {
+        return KeyValuePair.newBuilder().setKey("k" + i).setValue(ByteString.copyFromUtf8("v" + i)).setVersion(i)
+                .build();
+    }
+
+    private static WriteAheadLog log(File dir, long segmentBytes) {
+        return new WriteAheadLog(dir, segmentBytes, WriteAheadLog.SyncPolicy.OS, 0);
+    }
+
+    private static List<KeyValuePair> replay(File dir, long segmentBytes, long fromLsn) throws IOException {
+        List<KeyValuePair> replayed = new ArrayList<>();
+        WriteAheadLog wal = log(dir, segmentBytes);
+        wal.open(fromLsn, replayed::add);
+        wal.close();
+        return replayed;
+    }
+
+    @Test
+    public void recoveryReplaysAllRecordsInOrderAcrossSegments() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = log(dir, 256);
+        wal.open(0, record -> { });
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, wal.append(record(i)));
+        }
+        wal.close();
+
+        List<KeyValuePair> replayed = replay(dir, 256, 0);
+        assertEquals(100, replayed.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(record(i), replayed.get(i));
+        }
+    }
+
+    @Test
+    public void recoveryStartsAtTheSnapshotLsn() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = log(dir, 256);
+        wal.open(0, record -> { });
+        for (int i = 0; i < 50; i++) {
+            wal.append(record(i));
+        }
+        wal.close();
+
+        List<KeyValuePair> replayed = replay(dir, 256, 30);
+        assertEquals(20, replayed.size());
+        assertEquals(record(30), replayed.get(0));
+    }
+
+    @Test
+    public void appendingAfterRecoveryContinuesTheLsns() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = log(dir, 1 << 20);
+        wal.open(0, record -> { });
+        wal.append(record(0));
+        wal.append(record(1));
+        wal.close();
+
+        wal = log(dir, 1 << 20);
+        wal.open(0, record -> { });
+        assertEquals(2, wal.append(record(2)));
+        wal.close();
+        assertEquals(Arrays.asList(record(0), record(1), record(2)), replay(dir, 1 << 20, 0));
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsCutOff() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = log(dir, 1 << 20);
+        wal.open(0, record -> { });
+        for (int i = 0; i < 10; i++) {
+            wal.append(record(i));
+        }
+        wal.close();
+        File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        List<KeyValuePair> replayed = replay(dir, 1 << 20, 0);
+        assertEquals(9, replayed.size());
+        assertEquals(record(8), replayed.get(8));
+
+        // the torn bytes are gone, a new record follows the last intact one
+        wal = log(dir, 1 << 20);
+        wal.open(0, record -> { });
+        assertEquals(9, wal.append(record(42)));
+        wal.close();
+        replayed = replay(dir, 1 << 20, 0);
+        assertEquals(10, replayed.size());
+        assertEquals(record(42), replayed.get(9));
+    }
+
+    @Test
+    public void corruptRecordAtTheEndIsCutOff() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = log(dir, 1 << 20);
+        wal.open(0, record -> { });
+        for (int i = 0; i < 5; i++) {
+            wal.append(record(i));
+        }
+        wal.close();
+        File segment = dir.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // flip a byte of the last payload, its checksum no longer matches
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xff);
+        }
+
+        assertEquals(4, replay(dir, 1 << 20, 0).size());
+    }
+
+    @Test
+    public void garbageLengthAtTheEndIsCutOff() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = log(dir, 1 << 20);
+        wal.open(0, record -> { });
+        for (int i = 0; i < 5; i++) {
+            wal.append(record(i));
+        }
+        wal.close();
+        File segment = dir.listFiles()[0];
+        long intact = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // a header claiming far more bytes than the segment holds
+            file.seek(intact);
+            file.writeInt(Integer.MAX_VALUE - 1);
+            file.writeInt(0);
+            file.write(new byte[16]);
+        }
+
+        assertEquals(5, replay(dir, 1 << 20, 0).size());
+        assertEquals(intact, segment.length());
+    }
+}